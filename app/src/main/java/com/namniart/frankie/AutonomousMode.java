@@ -0,0 +1,42 @@
+package com.namniart.frankie;
+
+/**
+ * 'A' packet to the robot: turns autonomous driving on or off.
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class AutonomousMode extends Message {
+	public static final char TYPE = 'A';
+
+	private boolean mEnabled;
+
+	@Override
+	public char getType() {
+		return TYPE;
+	}
+
+	@Override
+	public int getSize() {
+		return 1;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	public AutonomousMode setEnabled(boolean enabled) {
+		mEnabled = enabled;
+		return this;
+	}
+
+	@Override
+	protected void readFields(Packet p) {
+		mEnabled = p.reads8() != 0;
+	}
+
+	@Override
+	protected void writeFields(Packet p) {
+		p.append((byte)(mEnabled ? 1 : 0));
+	}
+}
@@ -0,0 +1,82 @@
+package com.namniart.frankie;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Transport over a Bluetooth serial port profile (RFCOMM) connection.
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class BluetoothTransport implements Transport {
+	// well-know UUID for SPP; from Android documentation: 
+	// http://developer.android.com/reference/android/bluetooth/BluetoothDevice.html#createRfcommSocketToServiceRecord%28java.util.UUID%29
+	private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+	private final BluetoothDevice mDevice;
+	private volatile BluetoothSocket mSocket;
+	private volatile boolean mClosed;
+
+	public BluetoothTransport(BluetoothDevice device) {
+		mDevice = device;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		if( mClosed ) throw new IOException("Connection to " + getName() + " closed");
+		// a socket can't be reopened, so every connection needs a new one
+		BluetoothSocket socket = mDevice.createRfcommSocketToServiceRecord(SPP_UUID);
+		mSocket = socket;
+		// discovery slows down connecting a lot
+		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		if( adapter.isDiscovering() ) {
+			adapter.cancelDiscovery();
+		}
+		socket.connect();
+		if( mClosed ) {
+			// close() raced with connect(); it couldn't close a socket it didn't see yet
+			socket.close();
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return mSocket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return mSocket.getOutputStream();
+	}
+
+	@Override
+	public boolean canReconnect() {
+		return !mClosed;
+	}
+
+	@Override
+	public void disconnect() throws IOException {
+		BluetoothSocket socket = mSocket;
+		if( socket != null ) {
+			socket.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		mClosed = true;
+		disconnect();
+	}
+
+	@Override
+	public String getName() {
+		return mDevice.getName();
+	}
+}
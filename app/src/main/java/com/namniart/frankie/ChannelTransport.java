@@ -0,0 +1,44 @@
+package com.namniart.frankie;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * A Transport whose connection is made of NIO channels, so that a LinkSelector can run it on
+ * a thread shared with other links instead of a reader and writer thread of its own. <br/>
+ * <br/>
+ * connect() and the streams still work as for any other Transport; the methods here are an
+ * alternative for LinkSelector, and a connection is used one way or the other, not both. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public interface ChannelTransport extends Transport {
+	/**
+	 * Whether this transport can be run by a LinkSelector at all.
+	 */
+	public boolean isSelectable();
+
+	/**
+	 * Start connecting without blocking, leaving the channels in non-blocking mode.
+	 * @return true if the connection is ready; false if it is still being made, and
+	 * finishConnect() must be called once getReadChannel() is ready for OP_CONNECT
+	 */
+	public boolean connectNonBlocking() throws IOException;
+
+	/**
+	 * Finish a connection started by connectNonBlocking().
+	 * @return true if the connection is ready
+	 */
+	public boolean finishConnect() throws IOException;
+
+	/**
+	 * The channel to read from; also a ReadableByteChannel.
+	 */
+	public SelectableChannel getReadChannel();
+
+	/**
+	 * The channel to write to; also a WritableByteChannel. May be the same as the read channel.
+	 */
+	public SelectableChannel getWriteChannel();
+}
@@ -0,0 +1,62 @@
+package com.namniart.frankie;
+
+/**
+ * 'C' packet from the robot: compass heading.
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class CompassReading extends Message {
+	public static final char TYPE = 'C';
+
+	private int mHeading;
+	private int mSentHeading; // last heading written in a compact frame
+
+	@Override
+	public char getType() {
+		return TYPE;
+	}
+
+	@Override
+	public int getSize() {
+		return 4;
+	}
+
+	/**
+	 * @return heading in tenths of a degree
+	 */
+	public int getHeading() {
+		return mHeading;
+	}
+
+	public CompassReading setHeading(int heading) {
+		mHeading = heading;
+		return this;
+	}
+
+	@Override
+	protected void readFields(Packet p) {
+		mHeading = p.reads32();
+	}
+
+	@Override
+	protected void writeFields(Packet p) {
+		p.append(mHeading);
+	}
+
+	@Override
+	public boolean hasCompactEncoding() {
+		return true;
+	}
+
+	@Override
+	protected void readCompactFields(Packet p, boolean delta) {
+		mHeading = (delta ? mHeading : 0) + p.readVarint();
+	}
+
+	@Override
+	protected void writeCompactFields(Packet p, boolean delta) {
+		p.appendVarint(mHeading - (delta ? mSentHeading : 0));
+		mSentHeading = mHeading;
+	}
+}
@@ -0,0 +1,153 @@
+package com.namniart.frankie;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a task at a fixed rate on its own thread, for sending commands at a steady rate no
+ * matter how often input events arrive. <br/>
+ * <br/>
+ * Ticks are scheduled against absolute deadlines, so lateness in one tick does not push back
+ * the ones after it. The thread parks until just before each deadline and then spins the
+ * rest of the way, which keeps jitter well under a millisecond without burning a core. If
+ * the loop falls more than a whole period behind, the missed ticks are skipped and counted
+ * rather than run back to back. How late each tick ran is kept in a histogram. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class ControlLoop {
+	// how long before a deadline to stop parking and start spinning
+	private static final long SPIN_NS = 200000L;
+
+	private final Runnable mTask;
+	private final String mName;
+	private volatile long mPeriod;
+	private volatile boolean mStop;
+	private Thread mThread;
+
+	private final LatencyHistogram mJitter = new LatencyHistogram();
+	private final AtomicLong mTicks = new AtomicLong();
+	private final AtomicLong mMissed = new AtomicLong();
+
+	/**
+	 * @param name name for the loop's thread
+	 * @param task run once per tick, on the loop's thread
+	 * @param hz ticks per second
+	 */
+	public ControlLoop(String name, Runnable task, double hz) {
+		mName = name;
+		mTask = task;
+		setRate(hz);
+	}
+
+	/**
+	 * Change the tick rate. Takes effect from the next tick.
+	 */
+	public void setRate(double hz) {
+		if( hz <= 0 ) throw new IllegalArgumentException("Rate must be positive: " + hz);
+		mPeriod = (long)(1e9 / hz);
+	}
+
+	public double getRate() {
+		return 1e9 / mPeriod;
+	}
+
+	public synchronized void start() {
+		if( mThread != null ) return;
+		mStop = false;
+		mThread = new Thread(mName) {
+			@Override
+			public void run() {
+				loop();
+			}
+		};
+		mThread.setPriority(Thread.MAX_PRIORITY);
+		mThread.start();
+	}
+
+	/**
+	 * Stop ticking, and wait for the current tick to finish.
+	 */
+	public synchronized void stop() {
+		if( mThread == null ) return;
+		mStop = true;
+		LockSupport.unpark(mThread);
+		boolean interrupted = false;
+		while( mThread.isAlive() ) {
+			try {
+				mThread.join();
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		mThread = null;
+		if( interrupted ) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * How late each tick started, in nanoseconds.
+	 */
+	public LatencyHistogram getJitter() {
+		return mJitter;
+	}
+
+	public long getTickCount() {
+		return mTicks.get();
+	}
+
+	/**
+	 * Ticks skipped because the loop fell more than a period behind.
+	 */
+	public long getMissedTicks() {
+		return mMissed.get();
+	}
+
+	/**
+	 * Write a one-line summary of the tick rate and jitter, in microseconds.
+	 */
+	public void dump(Writer w) {
+		PrintWriter out = new PrintWriter(w);
+		out.println(mName + ": " + getRate() + " Hz, " + mTicks.get() + " ticks, "
+				+ mMissed.get() + " missed; jitter mean " + mJitter.getMean() / 1000.0
+				+ " us, p99 " + mJitter.getPercentile(99) / 1000.0
+				+ " us, max " + mJitter.getMax() / 1000.0 + " us");
+		out.flush();
+	}
+
+	private void loop() {
+		long deadline = System.nanoTime() + mPeriod;
+		while( !mStop ) {
+			long now = System.nanoTime();
+			long wait = deadline - now;
+			if( wait > SPIN_NS ) {
+				LockSupport.parkNanos(wait - SPIN_NS);
+				continue; // parking can end early; recheck
+			}
+			while( wait > 0 ) {
+				now = System.nanoTime();
+				wait = deadline - now;
+			}
+			if( mStop ) break;
+
+			mJitter.record(now - deadline);
+			mTicks.incrementAndGet();
+			try {
+				mTask.run();
+			} catch(RuntimeException e) {
+				FastLog.e(FastLog.JOYSTICK, mName + ": " + e);
+			}
+
+			long period = mPeriod;
+			deadline += period;
+			long behind = System.nanoTime() - deadline;
+			if( behind > period ) {
+				long skipped = behind / period;
+				mMissed.addAndGet(skipped);
+				deadline += skipped * period;
+			}
+		}
+	}
+}
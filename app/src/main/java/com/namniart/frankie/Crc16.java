@@ -0,0 +1,43 @@
+package com.namniart.frankie;
+
+/**
+ * Table-driven CRC-16/CCITT (polynomial 0x1021, initial value 0xFFFF), as used by checked
+ * frames.
+ *
+ * @author Austin Hendrix
+ *
+ */
+public final class Crc16 {
+	public static final int INIT = 0xFFFF;
+
+	private static final char[] TABLE = new char[256];
+	static {
+		for( int i=0; i<256; i++ ) {
+			int crc = i << 8;
+			for( int bit=0; bit<8; bit++ ) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+			TABLE[i] = (char)crc;
+		}
+	}
+
+	private Crc16() {
+	}
+
+	/**
+	 * Add one byte to a running CRC.
+	 */
+	public static int update(int crc, byte b) {
+		return ((crc << 8) ^ TABLE[((crc >> 8) ^ b) & 0xFF]) & 0xFFFF;
+	}
+
+	/**
+	 * Add len bytes of buf, starting at off, to a running CRC.
+	 */
+	public static int update(int crc, byte[] buf, int off, int len) {
+		for( int i=off, end=off + len; i<end; i++ ) {
+			crc = ((crc << 8) ^ TABLE[((crc >> 8) ^ buf[i]) & 0xFF]) & 0xFFFF;
+		}
+		return crc;
+	}
+}
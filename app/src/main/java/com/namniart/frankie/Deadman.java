@@ -0,0 +1,43 @@
+package com.namniart.frankie;
+
+/**
+ * 'D' packet to the robot: whether the deadman trigger is held. The robot stops when it
+ * isn't.
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class Deadman extends Message {
+	public static final char TYPE = 'D';
+
+	private boolean mPressed;
+
+	@Override
+	public char getType() {
+		return TYPE;
+	}
+
+	@Override
+	public int getSize() {
+		return 1;
+	}
+
+	public boolean isPressed() {
+		return mPressed;
+	}
+
+	public Deadman setPressed(boolean pressed) {
+		mPressed = pressed;
+		return this;
+	}
+
+	@Override
+	protected void readFields(Packet p) {
+		mPressed = p.reads8() != 0;
+	}
+
+	@Override
+	protected void writeFields(Packet p) {
+		p.append((byte)(mPressed ? 1 : 0));
+	}
+}
@@ -0,0 +1,70 @@
+package com.namniart.frankie;
+
+/**
+ * 'E' packet: asks the robot to send telemetry in the plain or the compact encoding (see
+ * Message). The robot sends the same packet back once it has switched; telemetry frames say
+ * which encoding they are in, so nothing depends on seeing the reply. Robots that don't know
+ * this packet ignore it and keep sending plain frames.
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class EncodingMode extends Message {
+	public static final char TYPE = 'E';
+
+	// the messages that have a compact encoding, indexed by type
+	private static final Message[] COMPACT_TYPES = new Message[256];
+	static {
+		Message[] compact = { new CompassReading(), new GpsFix() };
+		for( Message m : compact ) {
+			COMPACT_TYPES[m.getType()] = m;
+		}
+	}
+
+	private boolean mCompact;
+
+	/**
+	 * Whether frames of a type can be sent in the delta coded compact form, in which case
+	 * every one of them matters to the frames after it.
+	 */
+	public static boolean isDeltaCoded(int type) {
+		return COMPACT_TYPES[type & 0xFF] != null;
+	}
+
+	/**
+	 * Payload size of a type's plain form, if it has a compact form too; otherwise 0.
+	 */
+	public static int getPlainSize(int type) {
+		Message m = COMPACT_TYPES[type & 0xFF];
+		return m != null ? m.getSize() : 0;
+	}
+
+	@Override
+	public char getType() {
+		return TYPE;
+	}
+
+	@Override
+	public int getSize() {
+		return 1;
+	}
+
+	public boolean isCompact() {
+		return mCompact;
+	}
+
+	public EncodingMode setCompact(boolean compact) {
+		mCompact = compact;
+		return this;
+	}
+
+	@Override
+	protected void readFields(Packet p) {
+		mCompact = p.reads8() != 0;
+	}
+
+	@Override
+	protected void writeFields(Packet p) {
+		p.append((byte)(mCompact ? 1 : 0));
+	}
+}
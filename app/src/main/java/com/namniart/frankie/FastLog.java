@@ -0,0 +1,265 @@
+package com.namniart.frankie;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging for hot paths: cheap enough to leave in the control and telemetry loops. <br/>
+ * <br/>
+ * A call that is below its category's level is two loads and one branch. One that isn't
+ * writes a fixed-size binary entry, holding a timestamp, a format id and up to three numbers,
+ * into a ring buffer, without allocating or taking a lock. A background thread formats the
+ * entries and passes them to a Sink, on Android the system log, some time later. If the
+ * thread falls more than a ring's worth behind, the oldest entries are lost and counted. <br/>
+ * <br/>
+ * Formats are registered once, usually into a static final field, and use %d for integers and
+ * %f (or %.Nf) for floating point numbers, which must be passed through bits():
+ * <pre>
+ * private static final int LOG_AXIS = FastLog.format("Axis %d: %.3f");
+ * ...
+ * FastLog.d(FastLog.JOYSTICK, LOG_AXIS, i, FastLog.bits(value));
+ * </pre>
+ * Levels are the same numbers as android.util.Log's. Errors that need text, such as an
+ * exception's message, go through e(), which skips the ring and writes to the sink directly. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public final class FastLog {
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	public static final int SILENT = 7;
+
+	// categories
+	public static final int LINK = 0;
+	public static final int TELEMETRY = 1;
+	public static final int JOYSTICK = 2;
+	public static final int HARDWARE = 3;
+	public static final int RECORDING = 4;
+	private static final String[] TAGS = { "RobotLink", "Telemetry", "Joystick", "HardwareManager", "Recording" };
+
+	/**
+	 * Where formatted entries go.
+	 */
+	public interface Sink {
+		public void write(int level, String tag, String msg);
+	}
+
+	private static final int SIZE = 4096; // entries; a power of two
+	private static final int MASK = SIZE - 1;
+	private static final int FIELDS = 5; // time, level/category/format, three arguments
+	private static final long DRAIN_PERIOD_NS = 100000000L; // 100ms
+
+	// minimum level logged for each category. Written rarely, so setLevel() replaces the whole
+	// array; publishing it through the volatile field makes the change visible to every thread.
+	private static volatile int[] sLevels;
+	static {
+		int[] levels = new int[TAGS.length];
+		for( int i=0; i<levels.length; i++ ) {
+			levels[i] = INFO;
+		}
+		sLevels = levels;
+	}
+
+	// the ring: sHeaders[i] is one more than the sequence number of the entry in slot i once
+	// the entry is complete, and 0 while it is being written
+	private static final AtomicLong sNext = new AtomicLong();
+	private static final AtomicLongArray sHeaders = new AtomicLongArray(SIZE);
+	private static final AtomicLongArray sData = new AtomicLongArray(SIZE * FIELDS);
+
+	// registered formats, and which of their arguments are floating point
+	private static final ArrayList<String> sFormats = new ArrayList<String>();
+	private static final ArrayList<boolean[]> sFloats = new ArrayList<boolean[]>();
+
+	// drain thread state
+	private static Thread sDrain;
+	private static volatile Sink sSink;
+	private static long sDrained; // drain thread only
+	private static final AtomicLong sLost = new AtomicLong();
+
+	private FastLog() {
+	}
+
+	/**
+	 * Start the background thread that formats entries and writes them to sink. Until this is
+	 * called, entries are kept in the ring but go nowhere. Calling it again changes the sink.
+	 */
+	public static synchronized void start(Sink sink) {
+		sSink = sink;
+		if( sDrain != null ) return;
+		sDrain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while( true ) {
+					LockSupport.parkNanos(DRAIN_PERIOD_NS);
+					drain();
+				}
+			}
+		}, "FastLog drain");
+		sDrain.setDaemon(true);
+		sDrain.setPriority(Thread.MIN_PRIORITY);
+		sDrain.start();
+	}
+
+	/**
+	 * Log entries in category at level and above; SILENT (anything above ERROR) for none.
+	 */
+	public static synchronized void setLevel(int category, int level) {
+		int[] levels = sLevels.clone();
+		levels[category] = level;
+		sLevels = levels;
+	}
+
+	public static int getLevel(int category) {
+		return sLevels[category];
+	}
+
+	/**
+	 * Whether entries in category at level would be logged, for callers that have work to do
+	 * before they can log.
+	 */
+	public static boolean isLoggable(int category, int level) {
+		return level >= sLevels[category];
+	}
+
+	/**
+	 * Register a format, once.
+	 * @return the id to log it with
+	 */
+	public static synchronized int format(String format) {
+		boolean[] floats = new boolean[3];
+		int arg = 0;
+		for( int i = format.indexOf('%'); i >= 0 && i + 1 < format.length(); i = format.indexOf('%', i + 1) ) {
+			int j = i + 1;
+			if( format.charAt(j) == '%' ) {
+				i = j;
+				continue;
+			}
+			while( j < format.length() && !Character.isLetter(format.charAt(j)) ) j++;
+			if( j == format.length() ) break;
+			if( arg == floats.length ) throw new IllegalArgumentException("More than 3 arguments: " + format);
+			char conversion = format.charAt(j);
+			floats[arg++] = conversion == 'f' || conversion == 'e' || conversion == 'g';
+			i = j;
+		}
+		sFormats.add(format);
+		sFloats.add(floats);
+		return sFormats.size() - 1;
+	}
+
+	/**
+	 * Pack a floating point argument, for a %f in the format.
+	 */
+	public static long bits(double d) {
+		return Double.doubleToRawLongBits(d);
+	}
+
+	public static void d(int category, int format) {
+		if( DEBUG < sLevels[category] ) return;
+		put(DEBUG, category, format, 0, 0, 0);
+	}
+
+	public static void d(int category, int format, long a) {
+		if( DEBUG < sLevels[category] ) return;
+		put(DEBUG, category, format, a, 0, 0);
+	}
+
+	public static void d(int category, int format, long a, long b) {
+		if( DEBUG < sLevels[category] ) return;
+		put(DEBUG, category, format, a, b, 0);
+	}
+
+	public static void d(int category, int format, long a, long b, long c) {
+		if( DEBUG < sLevels[category] ) return;
+		put(DEBUG, category, format, a, b, c);
+	}
+
+	public static void log(int level, int category, int format, long a, long b, long c) {
+		if( level < sLevels[category] ) return;
+		put(level, category, format, a, b, c);
+	}
+
+	/**
+	 * Log an error message right away, on the calling thread. Only for rare events; this
+	 * formats and writes a string, and takes whatever locks the sink does. Before start(), the
+	 * message goes to System.err, so that command-line tools still show it.
+	 */
+	public static void e(int category, String msg) {
+		if( ERROR < sLevels[category] ) return;
+		Sink sink = sSink;
+		if( sink != null ) {
+			sink.write(ERROR, TAGS[category], msg);
+		} else {
+			System.err.println(TAGS[category] + ": " + msg);
+		}
+	}
+
+	private static void put(int level, int category, int format, long a, long b, long c) {
+		long seq = sNext.getAndIncrement();
+		int slot = (int)(seq & MASK);
+		int base = slot * FIELDS;
+		// mark the slot as being written, so the drain thread doesn't read a mix of two entries
+		sHeaders.set(slot, 0);
+		sData.lazySet(base, System.nanoTime());
+		sData.lazySet(base + 1, ((long)level << 40) | ((long)category << 32) | format);
+		sData.lazySet(base + 2, a);
+		sData.lazySet(base + 3, b);
+		sData.lazySet(base + 4, c);
+		sHeaders.lazySet(slot, seq + 1);
+	}
+
+	/**
+	 * Number of entries overwritten before the drain thread got to them.
+	 */
+	public static long getLostCount() {
+		return sLost.get();
+	}
+
+	/**
+	 * Format and write out everything logged so far. Normally called by the drain thread.
+	 */
+	static synchronized void drain() {
+		Sink sink = sSink;
+		long want = sDrained;
+		long end = sNext.get();
+		if( end - want > SIZE ) {
+			sLost.addAndGet(end - SIZE - want);
+			want = end - SIZE;
+		}
+		Object[] args = new Object[3];
+		while( want < end ) {
+			int slot = (int)(want & MASK);
+			int base = slot * FIELDS;
+			long header = sHeaders.get(slot);
+			if( header < want + 1 ) break; // still being written; get it next time
+			long time = sData.get(base);
+			long meta = sData.get(base + 1);
+			long a = sData.get(base + 2);
+			long b = sData.get(base + 3);
+			long c = sData.get(base + 4);
+			if( header != want + 1 || sHeaders.get(slot) != header ) {
+				// overwritten by a producer that has lapped us
+				sLost.incrementAndGet();
+				want++;
+				continue;
+			}
+			want++;
+			if( sink == null ) continue;
+			int level = (int)(meta >>> 40);
+			int category = (int)(meta >>> 32) & 0xFF;
+			int format = (int)meta;
+			boolean[] floats = sFloats.get(format);
+			args[0] = floats[0] ? (Object)Double.longBitsToDouble(a) : (Object)a;
+			args[1] = floats[1] ? (Object)Double.longBitsToDouble(b) : (Object)b;
+			args[2] = floats[2] ? (Object)Double.longBitsToDouble(c) : (Object)c;
+			sink.write(level, TAGS[category], String.format("%.3f ", time / 1e9)
+					+ String.format(sFormats.get(format), args));
+		}
+		sDrained = want;
+	}
+}
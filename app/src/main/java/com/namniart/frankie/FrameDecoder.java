@@ -0,0 +1,277 @@
+package com.namniart.frankie;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streaming decoder for frames coming from the robot. <br/>
+ * <br/>
+ * Reads the input stream in chunks into a reusable buffer, splits it into '\r'-terminated
+ * frames and undoes the ESC escaping in the same pass. Each complete frame is handed to a
+ * FrameListener as a view over the decoder's own buffer, so nothing is copied or allocated
+ * per frame. Frames may be split across reads, and one read may hold several frames. <br/>
+ * <br/>
+ * Checked frames, whose type byte has the high bit set, also carry a sequence number after
+ * the type and a CRC-16 before the terminator (see Packet.putChecked()). They can be mixed
+ * freely with plain frames. A checked frame with a bad CRC is counted as corrupt and thrown
+ * away, and decoding picks up again at the next terminator; gaps in the sequence numbers are
+ * counted as lost frames. Listeners see checked frames exactly like plain ones. <br/>
+ * <br/>
+ * Once both ends have agreed on checked framing, setCheckedOnly() makes plain frames errors.
+ * Otherwise a corrupted byte that turns into a terminator would split a checked frame, and
+ * its tail could pass for a plain frame that the CRC never sees. <br/>
+ * <br/>
+ * A lower case type letter marks the compact form of the upper case type. Listeners are
+ * given the upper case type, and a view for which Packet.isCompact() is true. Compact frames
+ * of a type that has no compact form (see EncodingMode.isDeltaCoded()) are counted as
+ * unsupported and thrown away. <br/>
+ * <br/>
+ * Not thread safe; one decoder belongs to one reader thread. The counters and the read time
+ * may be read from any thread. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class FrameDecoder {
+
+	/**
+	 * Receives decoded frames.
+	 */
+	public interface FrameListener {
+		/**
+		 * Called once per complete frame. The payload is only valid for the duration of the
+		 * call; it is overwritten by the next frame.
+		 * @param type the frame type byte
+		 * @param payload a view over the decoded payload, without type or terminator
+		 */
+		public void onFrame(int type, Packet payload);
+	}
+
+	private static final int CHUNK_SIZE = 512;
+	private static final int MAX_FRAME = 1024;
+
+	private final byte[] mChunk;
+	private final ByteBuffer mChunkBuffer; // mChunk, for channels
+	private byte[] mFrame;
+	private int mFrameLen;
+	private boolean mEscape;
+	private boolean mOverflow;
+	private final Packet mView;
+	private volatile boolean mCheckedOnly;
+
+	// written only by the reader thread, so lazySet() is enough to publish them whole
+	private final AtomicLong mFrames = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+	private final AtomicLong mCorrupt = new AtomicLong();
+	private final AtomicLong mLost = new AtomicLong();
+	private final AtomicLong mUnsupported = new AtomicLong();
+	private int mNextSeq = -1; // -1 until the first checked frame
+	private final AtomicLong mReadTime = new AtomicLong();
+
+	public FrameDecoder() {
+		mChunk = new byte[CHUNK_SIZE];
+		mChunkBuffer = ByteBuffer.wrap(mChunk);
+		mFrame = new byte[64];
+		mView = new Packet();
+	}
+
+	/**
+	 * Accept only checked frames, counting plain ones as errors; for when the robot has been
+	 * told to send checked frames. May be called from any thread.
+	 */
+	public void setCheckedOnly(boolean checkedOnly) {
+		mCheckedOnly = checkedOnly;
+	}
+
+	/**
+	 * Do a single read from the stream, and decode whatever it returned.
+	 * @return the number of bytes read, or -1 at end of stream
+	 */
+	public int read(InputStream in, FrameListener l) throws IOException {
+		int n = in.read(mChunk, 0, mChunk.length);
+		mReadTime.lazySet(System.nanoTime());
+		if( n > 0 ) {
+			decode(mChunk, 0, n, l);
+		}
+		return n;
+	}
+
+	/**
+	 * Do a single read from a channel, and decode whatever it returned. Doesn't wait if the
+	 * channel is non-blocking.
+	 * @return the number of bytes read, 0 if none were available, or -1 at end of stream
+	 */
+	public int read(ReadableByteChannel in, FrameListener l) throws IOException {
+		mChunkBuffer.clear();
+		int n = in.read(mChunkBuffer);
+		mReadTime.lazySet(System.nanoTime());
+		if( n > 0 ) {
+			decode(mChunk, 0, n, l);
+		}
+		return n;
+	}
+
+	/**
+	 * Decode len raw bytes of buf, starting at off, calling l for each frame they complete.
+	 */
+	public void decode(byte[] buf, int off, int len, FrameListener l) {
+		byte[] frame = mFrame;
+		int flen = mFrameLen;
+		boolean escape = mEscape;
+		boolean checkedOnly = mCheckedOnly;
+		int frames = 0;
+		int end = off + len;
+		for( int i=off; i<end; i++ ) {
+			byte b = buf[i];
+			if( escape ) {
+				b ^= Packet.ESC;
+				escape = false;
+			} else if( b == Packet.TERMINATOR ) {
+				if( mOverflow ) {
+					mOverflow = false;
+					count(mErrors);
+				} else if( flen > 0 ) {
+					int type = frame[0] & 0xFF;
+					if( (type & Packet.CHECKED) == 0 ) {
+						if( checkedOnly ) {
+							count(mErrors);
+							type = -1;
+						} else {
+							mView.wrap(frame, 1, flen - 1);
+						}
+					} else if( check(frame, flen) ) {
+						type &= ~Packet.CHECKED;
+						mView.wrap(frame, 2, flen - 4);
+					} else {
+						type = -1;
+					}
+					if( type >= 0 ) {
+						if( type >= 'a' && type <= 'z' ) {
+							// the compact form of an upper case type
+							type &= ~Packet.COMPACT;
+							mView.setCompact(true);
+							if( !EncodingMode.isDeltaCoded(type) ) {
+								count(mUnsupported);
+								type = -1;
+							}
+						}
+						if( type >= 0 ) {
+							frames++;
+							l.onFrame(type, mView);
+						}
+					}
+				}
+				flen = 0;
+				continue;
+			} else if( b == Packet.ESC && flen > 0 ) {
+				// the type byte is never escaped
+				escape = true;
+				continue;
+			}
+
+			if( flen == frame.length ) {
+				if( flen >= MAX_FRAME ) {
+					// no terminator in sight; drop everything up to the next one
+					mOverflow = true;
+					flen = 0;
+				} else {
+					byte[] grown = new byte[Math.min(frame.length * 2, MAX_FRAME)];
+					System.arraycopy(frame, 0, grown, 0, flen);
+					frame = grown;
+					mFrame = grown;
+				}
+			}
+			if( !mOverflow ) {
+				frame[flen++] = b;
+			}
+		}
+		mFrameLen = flen;
+		mEscape = escape;
+		if( frames > 0 ) mFrames.lazySet(mFrames.get() + frames);
+	}
+
+	private static void count(AtomicLong counter) {
+		counter.lazySet(counter.get() + 1);
+	}
+
+	/**
+	 * Forget any partly received frame and the expected sequence number, as when the
+	 * connection has been reestablished.
+	 */
+	public void reset() {
+		mFrameLen = 0;
+		mEscape = false;
+		mOverflow = false;
+		mNextSeq = -1;
+	}
+
+	/**
+	 * Validate a checked frame and track its sequence number.
+	 * @return false if the frame is corrupt
+	 */
+	private boolean check(byte[] frame, int flen) {
+		if( flen < 4 ) {
+			count(mCorrupt);
+			return false;
+		}
+		int crc = (frame[flen - 2] & 0xFF) | ((frame[flen - 1] & 0xFF) << 8);
+		if( Crc16.update(Crc16.INIT, frame, 0, flen - 2) != crc ) {
+			count(mCorrupt);
+			return false;
+		}
+		int seq = frame[1] & 0xFF;
+		if( mNextSeq >= 0 ) {
+			int lost = (seq - mNextSeq) & 0xFF;
+			if( lost != 0 ) mLost.lazySet(mLost.get() + lost);
+		}
+		mNextSeq = (seq + 1) & 0xFF;
+		return true;
+	}
+
+	/**
+	 * When the most recent read() returned, as System.nanoTime(). Listeners can use this as
+	 * the arrival time of the frame they are given.
+	 */
+	public long getReadTime() {
+		return mReadTime.get();
+	}
+
+	/**
+	 * Number of frames decoded so far; updated at the end of each decode().
+	 */
+	public long getFrameCount() {
+		return mFrames.get();
+	}
+
+	/**
+	 * Number of frames thrown away because they were too long to be valid, or were plain
+	 * when only checked frames are accepted.
+	 */
+	public long getErrorCount() {
+		return mErrors.get();
+	}
+
+	/**
+	 * Number of checked frames thrown away because their CRC didn't match.
+	 */
+	public long getCorruptCount() {
+		return mCorrupt.get();
+	}
+
+	/**
+	 * Number of checked frames missing from the sequence, whether dropped or corrupted.
+	 */
+	public long getLostCount() {
+		return mLost.get();
+	}
+
+	/**
+	 * Number of compact frames thrown away because their type has no compact form.
+	 */
+	public long getUnsupportedCount() {
+		return mUnsupported.get();
+	}
+}
@@ -0,0 +1,289 @@
+package com.namniart.frankie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every frame sent or received to a rolling binary log, for replaying field incidents. <br/>
+ * <br/>
+ * The I/O threads only copy each frame into an in-memory ring (one per direction, each with a
+ * single producer), which never blocks: if a ring is full the frame is dropped and counted.
+ * A background thread moves records from the rings into a set of preallocated,
+ * memory-mapped segment files, reusing the oldest segment when the last one fills. <br/>
+ * <br/>
+ * Segment file layout, little-endian: <br/>
+ * header: magic "FRNK", int version, long segment sequence number, long wall-clock time in ms
+ * and long System.nanoTime() when recording started. <br/>
+ * records: short payload length, byte direction, byte type, long System.nanoTime(), payload.
+ * A zero length marks the end of the segment. Payloads are decoded, without escaping; the
+ * type is lower case for compact frames, as on the wire. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class FrameRecorder {
+	public static final int INBOUND = 0;
+	public static final int OUTBOUND = 1;
+
+	static final int MAGIC = 0x4b4e5246; // "FRNK"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int RECORD_HEADER_SIZE = 12;
+
+	private static final int RING_SIZE = 256 * 1024;
+	private static final long DRAIN_INTERVAL_NS = 5000000L;
+
+	private final File mDir;
+	private final int mSegmentSize;
+	private final int mSegments;
+	private final long mStartWallTime;
+	private final long mStartTime;
+
+	private final Ring[] mRings = { new Ring(), new Ring() };
+	private final AtomicLong mDropped = new AtomicLong();
+	private final AtomicLong mRecorded = new AtomicLong();
+	private volatile boolean mStop;
+	private Thread mDrainer;
+
+	// only touched by the drain thread
+	private MappedByteBuffer mMap;
+	private long mSequence;
+	private final byte[] mScratch = new byte[RECORD_HEADER_SIZE + 0xFFFF];
+
+	/**
+	 * @param dir directory for the segment files, frames-0.bin and so on
+	 * @param segmentSize bytes per segment file
+	 * @param segments number of segment files to rotate through
+	 */
+	public FrameRecorder(File dir, int segmentSize, int segments) {
+		mDir = dir;
+		mSegmentSize = segmentSize;
+		mSegments = segments;
+		mStartWallTime = System.currentTimeMillis();
+		mStartTime = System.nanoTime();
+	}
+
+	/**
+	 * Name of segment file i in dir.
+	 */
+	static File segmentFile(File dir, int i) {
+		return new File(dir, "frames-" + i + ".bin");
+	}
+
+	/**
+	 * Map the first segment and start the drain thread.
+	 */
+	public void start() throws IOException {
+		mDir.mkdirs();
+		openSegment();
+		mDrainer = new Thread("FrameRecorder") {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		};
+		mDrainer.start();
+	}
+
+	/**
+	 * Write out whatever is still in the rings and stop.
+	 */
+	public void stop() throws InterruptedException {
+		mStop = true;
+		if( mDrainer != null ) {
+			LockSupport.unpark(mDrainer);
+			mDrainer.join();
+		}
+	}
+
+	/**
+	 * Frames that were not recorded because a ring was full.
+	 */
+	public long getDroppedCount() {
+		return mDropped.get();
+	}
+
+	/**
+	 * Frames written to the log.
+	 */
+	public long getRecordedCount() {
+		return mRecorded.get();
+	}
+
+	/**
+	 * Record an inbound frame. Must only be called from the reader thread.
+	 * @param payload a decoded view, positioned at the start of the payload
+	 */
+	public void recordInbound(int type, Packet payload, long nanos) {
+		Ring r = mRings[INBOUND];
+		int len = payload.length() - payload.position();
+		if( payload.isCompact() ) type |= Packet.COMPACT;
+		if( !r.begin(len, INBOUND, type, nanos) ) {
+			mDropped.incrementAndGet();
+			return;
+		}
+		r.put(payload.getBuffer(), payload.position(), len);
+		r.commit();
+	}
+
+	/**
+	 * Record an outbound packet. Must only be called from the writer thread.
+	 * @param p a finished packet in wire format: type, escaped payload, terminator
+	 */
+	public void recordOutbound(Packet p, long nanos) {
+		Ring r = mRings[OUTBOUND];
+		byte[] buf = p.getBuffer();
+		int end = p.length() - 1; // leave out the terminator
+		// the decoded payload is never longer than the escaped one
+		if( !r.begin(end - 1, OUTBOUND, buf[0] & 0xFF, nanos) ) {
+			mDropped.incrementAndGet();
+			return;
+		}
+		int len = 0;
+		for( int i=1; i<end; i++ ) {
+			byte b = buf[i];
+			if( b == Packet.ESC && i + 1 < end ) {
+				b = (byte)(buf[++i] ^ Packet.ESC);
+			}
+			r.putByte(b);
+			len++;
+		}
+		r.commit(len);
+	}
+
+	private void openSegment() throws IOException {
+		if( mMap != null ) {
+			mMap.force();
+		}
+		File f = segmentFile(mDir, (int)(mSequence % mSegments));
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(mSegmentSize);
+			mMap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+		} finally {
+			raf.close(); // the mapping stays valid
+		}
+		mMap.order(ByteOrder.LITTLE_ENDIAN);
+		mMap.putInt(MAGIC);
+		mMap.putInt(VERSION);
+		mMap.putLong(mSequence);
+		mMap.putLong(mStartWallTime);
+		mMap.putLong(mStartTime);
+		mMap.putShort(HEADER_SIZE, (short)0); // end marker
+		mSequence++;
+	}
+
+	private void drainLoop() {
+		try {
+			while( true ) {
+				boolean stopping = mStop;
+				int n = 0;
+				for( Ring r : mRings ) {
+					n += drain(r);
+				}
+				if( stopping && n == 0 ) break;
+				if( n == 0 ) LockSupport.parkNanos(DRAIN_INTERVAL_NS);
+			}
+			mMap.force();
+		} catch(IOException e) {
+			FastLog.e(FastLog.RECORDING, "FrameRecorder stopped: " + e);
+		}
+	}
+
+	/**
+	 * Move every complete record from a ring into the log.
+	 * @return the number of records moved
+	 */
+	private int drain(Ring r) throws IOException {
+		int n = 0;
+		int size;
+		while( (size = r.take(mScratch)) > 0 ) {
+			if( mMap.remaining() < size + 2 ) {
+				openSegment();
+			}
+			mMap.put(mScratch, 0, size);
+			if( mMap.remaining() >= 2 ) {
+				mMap.putShort(mMap.position(), (short)0); // end marker
+			}
+			n++;
+		}
+		mRecorded.addAndGet(n);
+		return n;
+	}
+
+	/**
+	 * Single-producer, single-consumer ring of variable length records. The producer writes
+	 * a record with begin(), put() and commit(); nothing is visible to the consumer until the
+	 * commit.
+	 */
+	private static class Ring {
+		private final byte[] mBuf = new byte[RING_SIZE];
+		private final int mMask = RING_SIZE - 1;
+		private final AtomicLong mHead = new AtomicLong(); // consumer position
+		private final AtomicLong mTail = new AtomicLong(); // producer position
+		private long mWrite; // producer's uncommitted position
+		private long mRecord; // start of the record being written
+
+		boolean begin(int maxLen, int direction, int type, long nanos) {
+			long tail = mTail.get();
+			if( RING_SIZE - (tail - mHead.get()) < RECORD_HEADER_SIZE + maxLen ) {
+				return false;
+			}
+			mRecord = tail;
+			mWrite = tail;
+			putByte((byte)0); // length, filled in by commit()
+			putByte((byte)0);
+			putByte((byte)direction);
+			putByte((byte)type);
+			for( int i=0; i<8; i++ ) {
+				putByte((byte)(nanos >>> (8*i)));
+			}
+			return true;
+		}
+
+		void putByte(byte b) {
+			mBuf[(int)(mWrite++ & mMask)] = b;
+		}
+
+		void put(byte[] b, int off, int len) {
+			int start = (int)(mWrite & mMask);
+			int first = Math.min(len, RING_SIZE - start);
+			System.arraycopy(b, off, mBuf, start, first);
+			System.arraycopy(b, off + first, mBuf, 0, len - first);
+			mWrite += len;
+		}
+
+		void commit() {
+			commit((int)(mWrite - mRecord - RECORD_HEADER_SIZE));
+		}
+
+		void commit(int len) {
+			mBuf[(int)(mRecord & mMask)] = (byte)len;
+			mBuf[(int)((mRecord + 1) & mMask)] = (byte)(len >> 8);
+			mTail.lazySet(mWrite);
+		}
+
+		/**
+		 * Copy the next record into dst.
+		 * @return the record's size including its header, or 0 if there is none
+		 */
+		int take(byte[] dst) {
+			long head = mHead.get();
+			if( head == mTail.get() ) return 0;
+			int len = (mBuf[(int)(head & mMask)] & 0xFF) | ((mBuf[(int)((head + 1) & mMask)] & 0xFF) << 8);
+			int size = RECORD_HEADER_SIZE + len;
+			int start = (int)(head & mMask);
+			int first = Math.min(size, RING_SIZE - start);
+			System.arraycopy(mBuf, start, dst, 0, first);
+			System.arraycopy(mBuf, 0, dst, first, size - first);
+			mHead.lazySet(head + size);
+			return size;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.namniart.frankie;
+
+/**
+ * 'G' packet from the robot: GPS position and the number of satellites in view.
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class GpsFix extends Message {
+	public static final char TYPE = 'G';
+
+	private int mLatitude;
+	private int mLongitude;
+	private int mSatellites;
+	// last values written in a compact frame
+	private int mSentLatitude;
+	private int mSentLongitude;
+	private int mSentSatellites;
+
+	@Override
+	public char getType() {
+		return TYPE;
+	}
+
+	@Override
+	public int getSize() {
+		return 12;
+	}
+
+	public int getLatitude() {
+		return mLatitude;
+	}
+
+	public int getLongitude() {
+		return mLongitude;
+	}
+
+	public int getSatellites() {
+		return mSatellites;
+	}
+
+	public GpsFix set(int latitude, int longitude, int satellites) {
+		mLatitude = latitude;
+		mLongitude = longitude;
+		mSatellites = satellites;
+		return this;
+	}
+
+	@Override
+	protected void readFields(Packet p) {
+		mLatitude = p.reads32();
+		mLongitude = p.reads32();
+		mSatellites = p.reads32();
+	}
+
+	@Override
+	protected void writeFields(Packet p) {
+		p.append(mLatitude);
+		p.append(mLongitude);
+		p.append(mSatellites);
+	}
+
+	@Override
+	public boolean hasCompactEncoding() {
+		return true;
+	}
+
+	@Override
+	protected void readCompactFields(Packet p, boolean delta) {
+		if( delta ) {
+			mLatitude += p.readVarint();
+			mLongitude += p.readVarint();
+			mSatellites += p.readVarint();
+		} else {
+			mLatitude = p.readVarint();
+			mLongitude = p.readVarint();
+			mSatellites = p.readVarint();
+		}
+	}
+
+	@Override
+	protected void writeCompactFields(Packet p, boolean delta) {
+		if( delta ) {
+			p.appendVarint(mLatitude - mSentLatitude);
+			p.appendVarint(mLongitude - mSentLongitude);
+			p.appendVarint(mSatellites - mSentSatellites);
+		} else {
+			p.appendVarint(mLatitude);
+			p.appendVarint(mLongitude);
+			p.appendVarint(mSatellites);
+		}
+		mSentLatitude = mLatitude;
+		mSentLongitude = mLongitude;
+		mSentSatellites = mSatellites;
+	}
+}
@@ -0,0 +1,222 @@
+package com.namniart.frankie;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Runs the handlers for one packet type on a thread of their own, so that a slow handler
+ * holds up only packets of its type instead of the reader and everything behind it. <br/>
+ * <br/>
+ * The reader copies each packet into a bounded mailbox of preallocated packets, so handing one
+ * off never allocates. Handlers run on one packet at a time, in the order they arrived. When
+ * the mailbox is full, the overflow policy decides what gives; the policies are the ones
+ * OutboundQueue uses: <br/>
+ * OVERFLOW_DROP_OLDEST: throw away the oldest waiting packet. <br/>
+ * OVERFLOW_DROP_NEWEST: throw away the packet being offered. <br/>
+ * OVERFLOW_BLOCK: make the reader wait, up to the block timeout, then drop the new packet. <br/>
+ * OVERFLOW_COALESCE: only the latest packet matters; it replaces whatever is waiting, full or
+ * not. <br/>
+ * Created through HandlerRegistry.setExecutor(). <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class HandlerExecutor {
+	private final HandlerRegistry mRegistry;
+	private final int mType;
+	private final int mPolicy;
+
+	// mailbox; guarded by this. Packets waiting are mRing[mHead] onwards, wrapping around.
+	private final Packet[] mRing;
+	private int mHead;
+	private int mCount;
+	private int mHighWater;
+	private long mDropped;
+	private long mBlockTimeout = 100000000L; // 100ms
+
+	// the packet the handlers are working on; swapped out of the ring so it can't be overwritten
+	private Packet mWorking = new Packet();
+	private final LatencyHistogram mQueueDelay = new LatencyHistogram();
+	private volatile boolean mStop;
+	private Thread mThread;
+
+	HandlerExecutor(HandlerRegistry registry, int type, int capacity, int policy) {
+		if( capacity < 1 ) throw new IllegalArgumentException("Capacity must be at least 1");
+		if( policy < OutboundQueue.OVERFLOW_DROP_OLDEST || policy > OutboundQueue.OVERFLOW_COALESCE ) {
+			throw new IllegalArgumentException("Unknown overflow policy " + policy);
+		}
+		mRegistry = registry;
+		mType = type & 0xFF;
+		mPolicy = policy;
+		mRing = new Packet[capacity];
+		for( int i=0; i<capacity; i++ ) {
+			mRing[i] = new Packet();
+		}
+	}
+
+	synchronized void start() {
+		if( mThread != null ) return;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "Handlers for '" + (char)mType + "'");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stop the thread once the handler it is running returns. Packets still waiting are
+	 * thrown away.
+	 */
+	void stop() throws InterruptedException {
+		Thread thread;
+		synchronized(this) {
+			mStop = true;
+			notifyAll();
+			thread = mThread;
+		}
+		if( thread != null && thread != Thread.currentThread() ) thread.join();
+	}
+
+	/**
+	 * How long a full mailbox makes the reader wait under OVERFLOW_BLOCK, in milliseconds.
+	 */
+	public synchronized void setBlockTimeout(long ms) {
+		mBlockTimeout = ms * 1000000L;
+	}
+
+	/**
+	 * Copy a packet into the mailbox. Called by the reader; p is only borrowed.
+	 * @return false if the packet was dropped
+	 */
+	boolean offer(Packet p) {
+		long now = System.nanoTime();
+		synchronized(this) {
+			if( mStop ) return false;
+			int capacity = mRing.length;
+			if( mPolicy == OutboundQueue.OVERFLOW_COALESCE && mCount > 0 ) {
+				// replace the newest waiting packet; its time stays, so the delay counts from there
+				Packet slot = mRing[(mHead + mCount - 1) % capacity];
+				long queued = slot.enqueueTime;
+				slot.copyView(p);
+				slot.enqueueTime = queued;
+				mDropped++;
+				return true;
+			}
+			if( mCount == capacity ) {
+				switch( mPolicy ) {
+				case OutboundQueue.OVERFLOW_DROP_OLDEST:
+					mHead = (mHead + 1) % capacity;
+					mCount--;
+					mDropped++;
+					break;
+				case OutboundQueue.OVERFLOW_BLOCK:
+					if( !awaitSpace(now) ) {
+						mDropped++;
+						return false;
+					}
+					break;
+				default:
+					mDropped++;
+					return false;
+				}
+			}
+			Packet slot = mRing[(mHead + mCount) % capacity];
+			slot.copyView(p);
+			slot.enqueueTime = now;
+			mCount++;
+			if( mCount > mHighWater ) mHighWater = mCount;
+			notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * Wait for the handlers to make room, up to the block timeout. Called holding the lock.
+	 * @return false if there is still no room
+	 */
+	private boolean awaitSpace(long now) {
+		long deadline = now + mBlockTimeout;
+		while( mCount == mRing.length && !mStop ) {
+			long wait = deadline - System.nanoTime();
+			if( wait <= 0 ) return false;
+			try {
+				wait(wait / 1000000L, (int)(wait % 1000000L));
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return !mStop;
+	}
+
+	private void loop() {
+		while( true ) {
+			Packet p;
+			synchronized(this) {
+				while( mCount == 0 && !mStop ) {
+					try {
+						wait();
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+				if( mStop ) return;
+				// trade our spare packet for the one at the head, so the reader can't touch it
+				p = mRing[mHead];
+				mRing[mHead] = mWorking;
+				mWorking = p;
+				mHead = (mHead + 1) % mRing.length;
+				if( mCount-- == mRing.length ) notifyAll();
+			}
+			mQueueDelay.record(System.nanoTime() - p.enqueueTime);
+			mRegistry.runHandlers(mType, p);
+		}
+	}
+
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * Number of packets waiting for the handlers.
+	 */
+	public synchronized int getDepth() {
+		return mCount;
+	}
+
+	/**
+	 * Largest number of packets that have been waiting at once.
+	 */
+	public synchronized int getHighWaterMark() {
+		return mHighWater;
+	}
+
+	/**
+	 * Number of packets thrown away or replaced because the handlers didn't keep up.
+	 */
+	public synchronized long getDroppedCount() {
+		return mDropped;
+	}
+
+	/**
+	 * Time from packets being handed off to the handlers starting on them.
+	 */
+	public LatencyHistogram getQueueDelay() {
+		return mQueueDelay;
+	}
+
+	/**
+	 * Write a one-line summary of the mailbox, with delays in microseconds.
+	 */
+	public void dump(Writer w) {
+		PrintWriter out = new PrintWriter(w);
+		out.println("Executor '" + (char)mType + "': capacity " + mRing.length + ", high water "
+				+ getHighWaterMark() + ", dropped " + getDroppedCount() + "; queue delay mean "
+				+ mQueueDelay.getMean() / 1000.0 + " us, p99 " + mQueueDelay.getPercentile(99) / 1000.0
+				+ " us, max " + mQueueDelay.getMax() / 1000.0 + " us");
+		out.flush();
+	}
+}
@@ -0,0 +1,272 @@
+package com.namniart.frankie;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of packet handlers, indexed directly by packet type. <br/>
+ * <br/>
+ * Each of the 256 slots holds an immutable set of handlers. Registering or removing a
+ * handler copies the set and swaps it in, so dispatch from the I/O thread is a single
+ * array load with no locking, boxing or allocation, and is safe while the UI thread
+ * registers handlers. <br/>
+ * <br/>
+ * Handlers run on the thread that calls dispatch(), unless their type has been given a
+ * HandlerExecutor with setExecutor(); then dispatch() only copies the packet into the
+ * executor's mailbox, and the handlers run on the executor's thread. Either way, the time
+ * each handler takes is recorded, and handlers slower than the slow threshold are flagged
+ * by dump(). <br/>
+ * <br/>
+ * A registry can have a parent, whose handlers see every packet dispatched through it too;
+ * each robot session has its own registry, with the application's global one as its parent. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class HandlerRegistry {
+	/**
+	 * Default execution time above which a handler is flagged as slow: 1ms, a twentieth of
+	 * the joystick command period.
+	 */
+	public static final long SLOW_HANDLER_NS = 1000000L;
+
+	/**
+	 * What is registered for one type. Never modified; replaced as a whole.
+	 */
+	private static final class Slot {
+		final PacketHandler[] handlers;
+		final LatencyHistogram[] times; // parallel to handlers
+		final HandlerExecutor executor; // null to run handlers on the dispatching thread
+
+		Slot(PacketHandler[] handlers, LatencyHistogram[] times, HandlerExecutor executor) {
+			this.handlers = handlers;
+			this.times = times;
+			this.executor = executor;
+		}
+	}
+
+	private static final Slot EMPTY = new Slot(new PacketHandler[0], new LatencyHistogram[0], null);
+
+	private final AtomicReferenceArray<Slot> mTable;
+	private final HandlerRegistry mParent;
+	private volatile long mSlowThreshold = SLOW_HANDLER_NS;
+
+	public HandlerRegistry() {
+		this(null);
+	}
+
+	/**
+	 * A registry that passes every packet on to parent after its own handlers.
+	 */
+	public HandlerRegistry(HandlerRegistry parent) {
+		mParent = parent;
+		mTable = new AtomicReferenceArray<Slot>(256);
+		for( int i=0; i<256; i++ ) {
+			mTable.set(i, EMPTY);
+		}
+	}
+
+	/**
+	 * Add a handler for a particular type of packet
+	 */
+	public synchronized void add(int type, PacketHandler h) {
+		Slot old = mTable.get(type & 0xFF);
+		int n = old.handlers.length;
+		PacketHandler[] handlers = new PacketHandler[n + 1];
+		LatencyHistogram[] times = new LatencyHistogram[n + 1];
+		System.arraycopy(old.handlers, 0, handlers, 0, n);
+		System.arraycopy(old.times, 0, times, 0, n);
+		handlers[n] = h;
+		times[n] = new LatencyHistogram();
+		mTable.set(type & 0xFF, new Slot(handlers, times, old.executor));
+	}
+
+	/**
+	 * Remove a handler for a particular type of packet
+	 */
+	public synchronized void remove(int type, PacketHandler h) {
+		Slot old = mTable.get(type & 0xFF);
+		int n = old.handlers.length;
+		for( int i=0; i<n; i++ ) {
+			if( old.handlers[i] == h ) {
+				PacketHandler[] handlers = new PacketHandler[n - 1];
+				LatencyHistogram[] times = new LatencyHistogram[n - 1];
+				System.arraycopy(old.handlers, 0, handlers, 0, i);
+				System.arraycopy(old.handlers, i + 1, handlers, i, n - i - 1);
+				System.arraycopy(old.times, 0, times, 0, i);
+				System.arraycopy(old.times, i + 1, times, i, n - i - 1);
+				mTable.set(type & 0xFF, new Slot(handlers, times, old.executor));
+				return;
+			}
+		}
+	}
+
+	public HandlerRegistry getParent() {
+		return mParent;
+	}
+
+	/**
+	 * Get the packet handlers for a particular type of packet. The array must not be modified.
+	 * Handlers registered with the parent aren't included.
+	 * @param type: The type of packet
+	 * @return the handlers; empty, never null, if there are none
+	 */
+	public PacketHandler[] get(int type) {
+		return mTable.get(type & 0xFF).handlers;
+	}
+
+	/**
+	 * Run the handlers for a type of packet on a thread of their own, with a mailbox of
+	 * capacity packets. Replaces any executor the type already had. <br/>
+	 * Types that can be delta coded (see EncodingMode.isDeltaCoded()) only take
+	 * OVERFLOW_BLOCK: a dropped frame would leave the handlers applying deltas to the wrong
+	 * values until the next key frame. A block that times out still drops one, but the
+	 * handlers' holders see the gap and wait for a key frame.
+	 * @param policy what to do when the mailbox is full; one of the OutboundQueue.OVERFLOW_
+	 * constants
+	 * @return the new executor, for its statistics
+	 */
+	public synchronized HandlerExecutor setExecutor(int type, int capacity, int policy) {
+		if( policy != OutboundQueue.OVERFLOW_BLOCK && EncodingMode.isDeltaCoded(type) ) {
+			throw new IllegalArgumentException("'" + (char)(type & 0xFF)
+					+ "' may be delta coded; its frames can't be dropped");
+		}
+		HandlerExecutor executor = new HandlerExecutor(this, type, capacity, policy);
+		executor.start();
+		swapExecutor(type, executor);
+		return executor;
+	}
+
+	/**
+	 * Go back to running the handlers for a type of packet on the dispatching thread.
+	 */
+	public synchronized void removeExecutor(int type) {
+		swapExecutor(type, null);
+	}
+
+	/**
+	 * Stop every executor. Handlers run on the dispatching thread from then on.
+	 */
+	public synchronized void shutdown() {
+		for( int i=0; i<256; i++ ) {
+			if( mTable.get(i).executor != null ) swapExecutor(i, null);
+		}
+	}
+
+	private void swapExecutor(int type, HandlerExecutor executor) {
+		Slot old = mTable.get(type & 0xFF);
+		mTable.set(type & 0xFF, new Slot(old.handlers, old.times, executor));
+		if( old.executor != null ) {
+			try {
+				old.executor.stop();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The executor for a type of packet, or null if its handlers run on the dispatching thread.
+	 */
+	public HandlerExecutor getExecutor(int type) {
+		return mTable.get(type & 0xFF).executor;
+	}
+
+	/**
+	 * Flag handlers whose 99th percentile execution time is above this, in nanoseconds.
+	 */
+	public void setSlowThreshold(long nanos) {
+		mSlowThreshold = nanos;
+	}
+
+	/**
+	 * Execution times of a handler, or null if it isn't registered for type.
+	 */
+	public LatencyHistogram getExecutionTimes(int type, PacketHandler h) {
+		Slot slot = mTable.get(type & 0xFF);
+		for( int i=0; i<slot.handlers.length; i++ ) {
+			if( slot.handlers[i] == h ) return slot.times[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Whether a handler's 99th percentile execution time is above the slow threshold.
+	 */
+	public boolean isSlow(int type, PacketHandler h) {
+		LatencyHistogram times = getExecutionTimes(type, h);
+		return times != null && times.getPercentile(99) > mSlowThreshold;
+	}
+
+	/**
+	 * Hand a packet to every handler registered for its type, or to its executor, and then
+	 * to the parent. The packet is only borrowed; an executor copies it. Every handler sees
+	 * the packet from the start, however much the ones before it read.
+	 */
+	public void dispatch(int type, Packet p) {
+		Slot slot = mTable.get(type & 0xFF);
+		int start = p.position();
+		if( slot.executor != null ) {
+			slot.executor.offer(p);
+		} else if( slot.handlers.length > 0 ) {
+			run(slot, p);
+		}
+		if( mParent != null ) {
+			p.seek(start);
+			mParent.dispatch(type, p);
+		}
+	}
+
+	/**
+	 * Run the handlers for a type on the calling thread; for HandlerExecutor.
+	 */
+	void runHandlers(int type, Packet p) {
+		run(mTable.get(type & 0xFF), p);
+	}
+
+	private static void run(Slot slot, Packet p) {
+		PacketHandler[] handlers = slot.handlers;
+		int position = p.position();
+		long start = System.nanoTime();
+		for( int i=0; i<handlers.length; i++ ) {
+			p.seek(position);
+			handlers[i].handlePacket(p);
+			long end = System.nanoTime();
+			slot.times[i].record(end - start);
+			start = end;
+		}
+	}
+
+	/**
+	 * Write a line for each handler with its execution times in microseconds, marking slow
+	 * ones, followed by a line for each executor; then the same for the parent, if any, whose
+	 * handlers also run for this registry's packets. The parent's times cover every registry
+	 * that shares it.
+	 */
+	public void dump(Writer w) {
+		PrintWriter out = new PrintWriter(w);
+		long slow = mSlowThreshold;
+		for( int type=0; type<256; type++ ) {
+			Slot slot = mTable.get(type);
+			for( int i=0; i<slot.handlers.length; i++ ) {
+				LatencyHistogram times = slot.times[i];
+				long p99 = times.getPercentile(99);
+				out.println("Handler '" + (char)type + "' " + slot.handlers[i].getClass().getName()
+						+ ": " + times.getCount() + " calls, mean " + times.getMean() / 1000.0
+						+ " us, p99 " + p99 / 1000.0 + " us, max " + times.getMax() / 1000.0 + " us"
+						+ (p99 > slow ? " SLOW" : ""));
+			}
+			if( slot.executor != null ) {
+				out.flush();
+				slot.executor.dump(w);
+			}
+		}
+		if( mParent != null ) {
+			out.println("Parent registry:");
+			out.flush();
+			mParent.dump(w);
+		}
+		out.flush();
+	}
+}
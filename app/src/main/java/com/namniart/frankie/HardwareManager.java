@@ -1,33 +1,34 @@
 package com.namniart.frankie;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.UUID;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Interface thread to the robot hardware. Runs as a thread, receives periodic updates from the robot
  * and updates its internal state accordingly. <br/>
  * <br/>
  * General usage pattern: <br/>
- * Create an instance of the class, giving it a BluetoothDevice and a Handler to send output to. <br/>
- * call start(). <br/>
- * call getCurrentState() any time to get a copy of the current robot state <br/>
+ * Create an instance of the class, giving it a BluetoothDevice (or any other Transport) and
+ * an Activity to report status through. <br/>
+ * call start(), or start(LinkSelector) to share an I/O thread with other robots. <br/>
+ * <br/>
+ * The protocol itself lives in RobotLink; this class runs it on a thread and reports what
+ * happens to the user. Each manager is one session with one robot, with its own transport,
+ * outbound queue and handlers; handlers registered with the application see packets from
+ * every session. <br/>
  */
 /*
  * Serial communication protocol:
  * This is mostly documentation of the internals; users of this class don't have to read it.
  * 
  * Basis: the serial protocol focuses on piecemeal updates as new data becomes available from the robot
- * each update is preceded by an identifier, and followed by a null byte
+ * each update is preceded by an identifier, and followed by a '\r'. '\r' and ESC bytes in the
+ * update are escaped; see RobotLink.
  * 
  * Input sentences:
  *
@@ -49,9 +50,20 @@ public class HardwareManager extends Thread {
 	
 	public static final byte MAX_SPEED = (byte)100;
     public static final byte MAX_HEADING = (byte)100;
+
+	// frame recording: 4 segments of 8MB, enough for a long drive at full telemetry rate
+	private static final int RECORDING_SEGMENT_SIZE = 8 * 1024 * 1024;
+	private static final int RECORDING_SEGMENTS = 4;
+
+	// outbound packets held while the link is slow; past this, the oldest are thrown away
+	// rather than flooding the robot with stale commands when it recovers
+	private static final int OUTBOUND_CAPACITY = 64;
+
+	// reconnecting: Bluetooth drops out briefly when the robot drives out of range or past a
+	// motor, so start retrying quickly but don't hammer the radio if it stays away
+	private static final long RECONNECT_MIN_MS = 100;
+	private static final long RECONNECT_MAX_MS = 5000;
 	
-	private BluetoothDevice mDevice;
-	private boolean mStop;
 	private RobotApplication mApp;
     private Activity mParentActivity;
 	
@@ -63,21 +75,52 @@ public class HardwareManager extends Thread {
 	private boolean mShutdown;
 	private boolean mAutonomous;
 	
-	// raw bytes that the application has requested to send
-	private List<Packet> mPackets;
+	// the protocol stack, if we have a connection to run it over
+	private final HandlerRegistry mHandlers;
+	private RobotLink mLink;
+	private OutboundQueue mPackets;
+	private LatencyStats mLatency;
+	private FrameRecorder mRecorder;
+	private volatile boolean mCompactTelemetry;
 		
 	/**
-	 * Create a hardware manager instance. Talk to the robot on the other of socket s, send status messages
-	 * to master.
+	 * Create a hardware manager instance that talks to the robot over Bluetooth.
 	 * @param d Bluetooth device to talk to
 	 */
 	public HardwareManager(BluetoothDevice d, RobotApplication app, Activity parent) {
-		mDevice = d;
-		mStop = false;
+		this(d == null ? null : new BluetoothTransport(d), app, parent);
+	}
+
+	/**
+	 * Create a hardware manager instance. Talk to the robot over transport t, send status messages
+	 * to parent.
+	 * @param t connection to the robot; null for a manager that never connects
+	 */
+	public HardwareManager(Transport t, RobotApplication app, Activity parent) {
 		mApp = app;
         mParentActivity = parent;
-		
-		mPackets = new LinkedList<Packet>();
+
+		mHandlers = new HandlerRegistry(app.getHandlerRegistry());
+		if( t != null ) {
+			mLink = new RobotLink(t, mHandlers);
+			mLink.setListener(mLinkListener);
+			mLink.setReconnect(true);
+			mLink.setBackoff(RECONNECT_MIN_MS, RECONNECT_MAX_MS);
+			mPackets = mLink.getOutboundQueue();
+			mLatency = mLink.getLatencyStats();
+		} else {
+			mPackets = new OutboundQueue();
+			mLatency = new LatencyStats();
+		}
+		mPackets.setCapacity(OUTBOUND_CAPACITY);
+		mPackets.setOverflowPolicy(OutboundQueue.OVERFLOW_DROP_OLDEST);
+		// setpoints: only the latest one is worth sending
+		mPackets.setCoalescing('V', true);
+		mPackets.setCoalescing('D', true);
+		mPackets.setCoalescing('A', true);
+		// safety: deadman and autonomous mode changes go out before anything else
+		mPackets.setPriority('D', OutboundQueue.PRIORITY_HIGH);
+		mPackets.setPriority('A', OutboundQueue.PRIORITY_HIGH);
 	}
 	
 	private void message(String msg) {
@@ -94,6 +137,38 @@ public class HardwareManager extends Thread {
             });
         }
     }
+
+	private final RobotLink.Listener mLinkListener = new RobotLink.Listener() {
+		@Override
+		public void onConnected(RobotLink link) {
+			String verb = link.getReconnectCount() > 0 ? "Reconnected to " : "Connected to ";
+			message(verb + link.getTransport().getName());
+            toast(verb + link.getTransport().getName());
+			// the robot forgets what we asked for when the connection drops
+			if( mCompactTelemetry && link.getReconnectCount() > 0 ) {
+				sendPacket(new EncodingMode().setCompact(true).encode());
+			}
+		}
+
+		@Override
+		public void onDisconnected(RobotLink link, Exception e) {
+			Log.w("HardwareManager", "Connection lost: " + e.toString());
+            toast("Connection lost; reconnecting");
+		}
+
+		@Override
+		public void onClosed(RobotLink link) {
+			message("HardwareManager terminated");
+            toast("Connection closed");
+		}
+
+		@Override
+		public void onError(RobotLink link, Exception e) {
+			// tell the master why we died
+			Log.e("HardwareManager", "Exception: " + e.toString(), e);
+            toast("ERROR. Disconnected: " + e.toString());
+		}
+	};
 	
 	/**
 	 * Run the hardware manager. Don't call this directly; invoke the superclass start() so that it runs
@@ -101,90 +176,156 @@ public class HardwareManager extends Thread {
 	 */
 	@Override
 	public void run() {
-		BluetoothDevice dev = mDevice;
-		try {
-			
-			// well-know UUID for SPP; from Android documentation: 
-			// http://developer.android.com/reference/android/bluetooth/BluetoothDevice.html#createRfcommSocketToServiceRecord%28java.util.UUID%29
-            BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
-            BluetoothSocket socket = mDevice.createRfcommSocketToServiceRecord(UUID.fromString("00001101-0000-1000-8000-00805F9B34FB"));
-			message("Created socket to " + mDevice.getName());
-
-
-			// connect socket
-			message("Connecting socket to " + dev.getName() + "...");
-            BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
-			socket.connect();
-			message("Connected to " + dev.getName());
-            toast("Connected to " + dev.getName());
-
-			// set up input and output streams
-			OutputStream out = socket.getOutputStream();
-			InputStream in = socket.getInputStream();
-			int c = 0;
-			int i;
-			
-			// main thread loop
-			while( mStop != true ) {
-				if( in.available() < 1 
-						&& !mStop ) sleep(10); // this limits how quickly we can send/receive updates from the hardware
-				
-				if( in.available() > 0 ) {
-					//message("Receiving data");
-					int type = in.read(); // read type
-					//message("Handling packet: " + type);
-					List<Byte> data = new LinkedList<Byte>();
-					do {
-						c = in.read();
-						data.add((byte)c);
-						//message("Got byte: " + c);
-					} while(c != '\r');
-					Packet p = new Packet(data);
-					List<PacketHandler> handlers = mApp.getHandlers(type);
-					if( handlers != null ) {
-						for( PacketHandler h : mApp.getHandlers(type) ) {
-							h.handlePacket(p);
-						}
-					}
-				}
-								
-				// send any packets requested by the application
-				synchronized(mPackets) {
-					for( Packet p : mPackets ) {
-						message("Transmitting packet: " + p.toString());
-						out.write(p.toByteArray());
-					}
-					mPackets.clear();
-				}
-			}
-						
-			// don't forget to close our socket when we're done.
-			socket.close();
-			message("HardwareManager terminated");
-            toast("Bluetooth connection closed");
-
-		} catch(Exception e) {
-			// tell the master why we died
-			Log.e("HardwareManager", "Exception: " + e.toString(), e);
-            toast("ERROR. Bluetooth disconnected: " + e.toString());
-        }
+		if( mLink != null ) {
+			message("Connecting to " + mLink.getTransport().getName() + "...");
+			mLink.run();
+		}
 		return; // I like seeing where the end of my function is
 	}
 	
 	/**
-	 * Request that this thread stop.
+	 * Start talking to the robot on io, an I/O thread shared with other sessions, if the
+	 * transport allows it, and on this manager's own threads otherwise. Call this or start(),
+	 * not both.
+	 */
+	public void start(LinkSelector io) {
+		if( mLink != null && io != null && LinkSelector.canRun(mLink) ) {
+			message("Connecting to " + mLink.getTransport().getName() + " on the shared I/O thread...");
+			io.add(mLink);
+		} else {
+			start();
+		}
+	}
+
+	/**
+	 * Request that this thread stop. Closes the connection so that the blocked reader wakes up.
 	 */
 	public void sendStop() {
-		mStop = true;
+		stopRecording();
+		if( mLink != null ) {
+			try {
+				mLink.stop();
+			} catch(IOException e) {
+				Log.e("HardwareManager", "Exception closing connection: " + e.toString(), e);
+			}
+		}
 	}
 			
 	/**
-	 * send a packet to the robot
+	 * send a packet to the robot. The packet is recycled once it has been sent, so the caller
+	 * must not touch it after this.
 	 */
 	public void sendPacket(Packet p) {
-		synchronized(mPackets) {
-			message("Put packet in queue");
-			mPackets.add(p);
+		mPackets.offer(p);
+	}
+
+	/**
+	 * Send checked frames, with sequence numbers and CRCs, and accept only checked frames from
+	 * the robot. Only for robots that send them too. Set it before start(), so that it covers
+	 * the first frames; RobotApplication.startSession() takes it for that.
+	 */
+	public void setCheckedFraming(boolean checked) {
+		if( mLink != null ) mLink.setCheckedFraming(checked);
+	}
+
+	/**
+	 * Ask the robot to send telemetry in the compact encoding, or to go back to the plain one.
+	 * Robots that don't support it carry on as before; frames say which encoding they are in.
+	 */
+	public void setCompactTelemetry(boolean compact) {
+		mCompactTelemetry = compact;
+		sendPacket(new EncodingMode().setCompact(compact).encode());
+	}
+
+	/**
+	 * The queue of packets waiting to be sent, for configuration and statistics.
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return mPackets;
+	}
+
+	/**
+	 * Latency histograms for the command and telemetry paths.
+	 */
+	public LatencyStats getLatencyStats() {
+		return mLatency;
+	}
+
+	/**
+	 * Write the reconnect count and timings for the link, if there is one, and its throughput
+	 * statistics: the totals, and the rates as of the last LinkStats.sample().
+	 */
+	public void dumpConnectionStats(java.io.Writer w) {
+		if( mLink != null ) {
+			mLink.dumpConnectionStats(w);
+			mLink.getLinkStats().dump(w);
+		}
+	}
+
+	/**
+	 * Throughput and efficiency counters for the link, or null if there is no connection.
+	 */
+	public LinkStats getLinkStats() {
+		return mLink != null ? mLink.getLinkStats() : null;
+	}
+
+	/**
+	 * Start recording every frame to a rolling log of memory-mapped files in dir. Does nothing
+	 * if already recording, or if there is no connection.
+	 */
+	public synchronized void startRecording(File dir) throws IOException {
+		if( mLink == null || mRecorder != null ) return;
+		FrameRecorder recorder = new FrameRecorder(dir, RECORDING_SEGMENT_SIZE, RECORDING_SEGMENTS);
+		recorder.start();
+		mRecorder = recorder;
+		mLink.setRecorder(recorder);
+		message("Recording frames to " + dir);
+	}
+
+	/**
+	 * Stop recording, and flush what has been recorded so far.
+	 */
+	public synchronized void stopRecording() {
+		if( mRecorder == null ) return;
+		mLink.setRecorder(null);
+		try {
+			mRecorder.stop();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		message("Recorded " + mRecorder.getRecordedCount() + " frames, dropped " + mRecorder.getDroppedCount());
+		mRecorder = null;
+	}
+
+	public synchronized boolean isRecording() {
+		return mRecorder != null;
+	}
+
+	/**
+	 * Add a handler for packets from this robot only.
+	 */
+	public void addHandler(int type, PacketHandler p) {
+		mHandlers.add(type, p);
+	}
+
+	/**
+	 * Remove a handler added with addHandler().
+	 */
+	public void removeHandler(int type, PacketHandler p) {
+		mHandlers.remove(type, p);
+	}
+
+	/**
+	 * Handlers for packets from this robot only; the application's registry is its parent.
+	 */
+	public HandlerRegistry getHandlerRegistry() {
+		return mHandlers;
+	}
+
+	/**
+	 * The protocol stack under this manager, or null if it never connects.
+	 */
+	public RobotLink getLink() {
+		return mLink;
 	}
-}
\ No newline at end of file
+}
@@ -1,5 +1,7 @@
 package com.namniart.frankie;
 
+import java.util.Arrays;
+
 import android.util.Log;
 import android.util.SparseIntArray;
 import android.view.InputDevice;
@@ -7,14 +9,31 @@ import android.view.InputDevice.MotionRange;
 import android.view.MotionEvent;
 
 public class Joystick {
+    // commands are sent at this rate, however fast or slow the joystick sends events
+    public static final double COMMAND_RATE = 50;
+    // per-event logging; a single branch unless the JOYSTICK category is at DEBUG
+    private static final int LOG_AXIS = FastLog.format("Axis %d: %.3f");
+    private static final int LOG_UPDATE = FastLog.format("Joystick update. x: %.3f, y: %.3f");
+    private static final int LOG_COMMAND = FastLog.format("Speed: %d, Steering: %d");
+
     private InputDevice device_;
-    private boolean isInitialized_;
+    private volatile boolean isInitialized_;
+    // a joystick has been used, so the loop sends commands: live ones, or stops
+    private volatile boolean isActive_;
     private int messageSequenceNumber_;
     private int[] axes_;
     private float[] axesValues_;
     private SparseIntArray keys_;
     private int x_axis, y_axis, deadman;
     private RobotApplication mApp;
+    // reused for every command sent
+    private final Deadman mDeadman = new Deadman();
+    private final VelocityCommand mVelocity = new VelocityCommand();
+    private final ControlLoop mLoop;
+    // System.nanoTime() of the latest event; written after axesValues_ so that reading it
+    // makes the new values visible to the control loop
+    private volatile long mEventTime;
+    private long mSentEventTime;
     
    /**
     * The constructor for this class
@@ -33,6 +52,37 @@ public class Joystick {
         x_axis = 4;
         y_axis = 1;
         deadman = 6;
+
+        mLoop = new ControlLoop("Joystick control", new Runnable() {
+            @Override
+            public void run() {
+                sendCommands();
+            }
+        }, COMMAND_RATE);
+    }
+
+    /**
+    * Start sending commands at COMMAND_RATE.
+    */
+    public void start()
+    {
+        mLoop.start();
+    }
+
+    /**
+    * Stop sending commands.
+    */
+    public void stop()
+    {
+        mLoop.stop();
+    }
+
+    /**
+    * The loop that sends commands, for its rate and jitter statistics.
+    */
+    public ControlLoop getControlLoop()
+    {
+        return mLoop;
     }
 
     /**
@@ -50,6 +100,9 @@ public class Joystick {
     */
     public void initializeDevice(InputDevice device)
     {
+        // a device we already turned down; don't rebuild the tables on every event
+        if (device_ != null && device_.getId() == device.getId())
+            return;
         device_ = device;
 
         //Determine number of axis available
@@ -75,7 +128,29 @@ public class Joystick {
             }
         }    
 
+        // check the control axes once here rather than on every event
+        if (x_axis >= numAxes || y_axis >= numAxes || deadman >= numAxes)
+        {
+            Log.w("JoystickNode", device.getName() + " has only " + numAxes + " axes; ignoring it");
+            return;
+        }
+
         isInitialized_ = true;    
+        isActive_ = true;
+    }
+
+    /**
+    * Called when an input device goes away. If it was the joystick, forget its state, so the
+    * loop sends stop commands until another joystick is used.
+    */
+    public void onDeviceRemoved(int deviceId)
+    {
+        if (device_ == null || device_.getId() != deviceId)
+            return;
+        isInitialized_ = false;
+        mEventTime = 0;
+        Arrays.fill(axesValues_, 0.0f);
+        device_ = null;
     }
 
     /**
@@ -93,7 +168,8 @@ public class Joystick {
     
     /**
     * This method should be called from a holding widget that can intercept
-    * Android input events when a joystick axis control is manipulated
+    * Android input events when a joystick axis control is manipulated. It only records the
+    * new axis values; the control loop sends them on its next tick. Allocates nothing.
     */
     public boolean onJoystickMotion(MotionEvent event) 
     {
@@ -101,6 +177,7 @@ public class Joystick {
         {
             return false;
         }
+        long eventTime = System.nanoTime(); // for command latency statistics
 
         //Update the latest axis value for each axis. The MotionEvent object contains the state of each axis.
         for (int i = 0; i < axes_.length; i++)
@@ -108,32 +185,54 @@ public class Joystick {
             int axisId = axes_[i];
             float axisVal = roundToZeroIfNecessary(event.getAxisValue(axisId));
             axesValues_[i] = axisVal;
-            Log.d("JoystickNode", "Axis:" + i + ", value: " + axisVal);
+            FastLog.d(FastLog.JOYSTICK, LOG_AXIS, i, FastLog.bits(axisVal));
         }
+        mEventTime = eventTime;
 
-        Packet DeadManPacket = new Packet('D');
-        byte deadman_value = 0;
-        if( axesValues_[deadman] > 0 ) {
-            deadman_value = 1;
+        return true;
+    }
+
+    /**
+    * Called by the control loop once per tick: sends one deadman and one velocity command
+    * from the latest axis values, or a released deadman and zero velocity if the joystick
+    * has been removed. Gamepads only report axes that change, so a held stick is re-sent
+    * as it stands; a link that stops carrying commands is the robot's deadman to catch.
+    */
+    private void sendCommands()
+    {
+        if (!isActive_)
+            return;
+        long eventTime = mEventTime;
+        if (!isInitialized_)
+        {
+            sendStop();
+            return;
         }
-        DeadManPacket.append(deadman_value);
-        DeadManPacket.finish();
+        // only commands carrying a new event say when it happened; repeats have no origin
+        long origin = eventTime != mSentEventTime ? eventTime : 0;
+        mSentEventTime = eventTime;
+
+        // encode() takes packets from the pool, and the writer returns them after sending
+        Packet DeadManPacket = mDeadman.setPressed(axesValues_[deadman] > 0).encode();
+        DeadManPacket.setOriginTime(origin);
         mApp.getHwMan().sendPacket(DeadManPacket);
 
         // TODO: send/publish joystick event
         float x = axesValues_[x_axis];
         float y = -axesValues_[y_axis]; // invert y axis so that + is up/forward
-        Log.d("JoystickNode", "Joystick update. x: " + x + ", y: " + y);
+        FastLog.d(FastLog.JOYSTICK, LOG_UPDATE, FastLog.bits(x), FastLog.bits(y));
 
-        Packet control = new Packet('V');
         byte speed = (byte) Math.round(y>0?y*15:y*45);
         byte steering = (byte) Math.round(x * 25);
-        Log.d("JoystickNode", "Speed: " + speed + ", Steering: " + steering);
-        control.append(speed);
-        control.append(steering);
-        control.finish();
+        FastLog.d(FastLog.JOYSTICK, LOG_COMMAND, speed, steering);
+        Packet control = mVelocity.set(speed, steering).encode();
+        control.setOriginTime(origin);
         mApp.getHwMan().sendPacket(control);
+    }
 
-        return true;
+    private void sendStop()
+    {
+        mApp.getHwMan().sendPacket(mDeadman.setPressed(false).encode());
+        mApp.getHwMan().sendPacket(mVelocity.set((byte)0, (byte)0).encode());
     }
 }
@@ -0,0 +1,104 @@
+package com.namniart.frankie;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of latencies in nanoseconds. <br/>
+ * <br/>
+ * Buckets are log-linear: every power of two is split into 16 equal buckets, so any recorded
+ * value is off by at most about 6%. Values from 0 up to 2^40 ns (about 18 minutes) are
+ * covered; anything larger lands in the top bucket. Recording is a few arithmetic operations
+ * and an atomic increment, never allocates, and is safe from any number of threads. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int MAX_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mTotal = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	private static int bucket(long v) {
+		if( v < 2 * SUB_COUNT ) return (int)v;
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return shift * SUB_COUNT + (int)(v >>> shift);
+	}
+
+	/**
+	 * The smallest value that falls in bucket i.
+	 */
+	private static long lowerBound(int i) {
+		if( i < SUB_COUNT ) return i;
+		int shift = i / SUB_COUNT - 1;
+		return ((long)(i % SUB_COUNT + SUB_COUNT)) << shift;
+	}
+
+	/**
+	 * Record one latency.
+	 * @param nanos the latency; negative values are counted as zero
+	 */
+	public void record(long nanos) {
+		if( nanos < 0 ) nanos = 0;
+		if( nanos > MAX_VALUE ) nanos = MAX_VALUE;
+		mCounts.incrementAndGet(bucket(nanos));
+		mTotal.incrementAndGet();
+		mSum.addAndGet(nanos);
+		long max;
+		while( nanos > (max = mMax.get()) ) {
+			if( mMax.compareAndSet(max, nanos) ) break;
+		}
+	}
+
+	public long getCount() {
+		return mTotal.get();
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	public long getMean() {
+		long count = mTotal.get();
+		return count > 0 ? mSum.get() / count : 0;
+	}
+
+	/**
+	 * The latency below which the given percentage of recorded values fall.
+	 * @param percentile between 0 and 100, such as 99.9
+	 * @return the upper end of the bucket holding that value, in nanoseconds
+	 */
+	public long getPercentile(double percentile) {
+		long count = mTotal.get();
+		if( count == 0 ) return 0;
+		long target = (long)Math.ceil(count * percentile / 100.0);
+		if( target < 1 ) target = 1;
+		long seen = 0;
+		for( int i=0; i<BUCKETS; i++ ) {
+			seen += mCounts.get(i);
+			if( seen >= target ) {
+				return Math.min(i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : MAX_VALUE, mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+
+	/**
+	 * Forget everything recorded so far. Values recorded while this runs may be lost.
+	 */
+	public void reset() {
+		for( int i=0; i<BUCKETS; i++ ) {
+			mCounts.set(i, 0);
+		}
+		mTotal.set(0);
+		mSum.set(0);
+		mMax.set(0);
+	}
+}
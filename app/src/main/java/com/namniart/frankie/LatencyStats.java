@@ -0,0 +1,123 @@
+package com.namniart.frankie;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency histograms for the command and telemetry paths, per packet type. <br/>
+ * <br/>
+ * Outbound packets are measured from when they were created (for packets stamped with
+ * Packet.setOriginTime(), such as joystick commands) and from when they were queued, to when
+ * the write that carried them finished. Inbound frames are measured from when the read that
+ * completed them returned to the end of decoding, and from the end of decoding to when the
+ * last handler finished. <br/>
+ * <br/>
+ * A histogram is created the first time a type is seen on a path; after that recording does
+ * not allocate. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class LatencyStats {
+	/** Outbound: origin time (e.g. joystick event) to socket write. */
+	public static final int COMMAND = 0;
+	/** Outbound: sendPacket() to socket write. */
+	public static final int QUEUE = 1;
+	/** Inbound: read returned to end of frame decode. */
+	public static final int DECODE = 2;
+	/** Inbound: end of frame decode to handler completion, or to hand-off for types with a HandlerExecutor. */
+	public static final int HANDLER = 3;
+	public static final int PATHS = 4;
+
+	private static final String[] PATH_NAMES = { "command", "queue", "decode", "handler" };
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private final AtomicReferenceArray<LatencyHistogram> mHistograms =
+			new AtomicReferenceArray<LatencyHistogram>(PATHS * 256);
+
+	/**
+	 * The histogram for a path and packet type, or null if nothing has been recorded there.
+	 * @param path one of COMMAND, QUEUE, DECODE or HANDLER
+	 */
+	public LatencyHistogram get(int path, int type) {
+		return mHistograms.get(path * 256 + (type & 0xFF));
+	}
+
+	/**
+	 * Record a latency on a path for a packet type.
+	 */
+	public void record(int path, int type, long nanos) {
+		int i = path * 256 + (type & 0xFF);
+		LatencyHistogram h = mHistograms.get(i);
+		if( h == null ) {
+			mHistograms.compareAndSet(i, null, new LatencyHistogram());
+			h = mHistograms.get(i);
+		}
+		h.record(nanos);
+	}
+
+	/**
+	 * Record an outbound packet whose write finished at time now.
+	 */
+	public void recordSent(Packet p, long now) {
+		int type = p.getBuffer()[0] & 0xFF;
+		long origin = p.getOriginTime();
+		if( origin != 0 ) record(COMMAND, type, now - origin);
+		record(QUEUE, type, now - p.enqueueTime);
+	}
+
+	/**
+	 * Clear every histogram.
+	 */
+	public void reset() {
+		for( int i=0; i<mHistograms.length(); i++ ) {
+			LatencyHistogram h = mHistograms.get(i);
+			if( h != null ) h.reset();
+		}
+	}
+
+	/**
+	 * Write a table of counts and percentiles, in microseconds, for every histogram that has
+	 * data.
+	 */
+	public void dump(Writer w) {
+		PrintWriter out = new PrintWriter(w);
+		out.println("path\ttype\tcount\tmean_us\tp50_us\tp90_us\tp99_us\tp99.9_us\tmax_us");
+		for( int path=0; path<PATHS; path++ ) {
+			for( int type=0; type<256; type++ ) {
+				LatencyHistogram h = get(path, type);
+				if( h == null || h.getCount() == 0 ) continue;
+				out.print(PATH_NAMES[path]);
+				out.print('\t');
+				out.print(type >= 0x20 && type < 0x7f ? Character.toString((char)type) : Integer.toString(type));
+				out.print('\t');
+				out.print(h.getCount());
+				out.print('\t');
+				out.print(h.getMean() / 1000.0);
+				for( double p : PERCENTILES ) {
+					out.print('\t');
+					out.print(h.getPercentile(p) / 1000.0);
+				}
+				out.print('\t');
+				out.println(h.getMax() / 1000.0);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write the table from dump() to a file, replacing it.
+	 */
+	public void dump(File f) throws IOException {
+		FileWriter w = new FileWriter(f);
+		try {
+			dump(w);
+		} finally {
+			w.close();
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package com.namniart.frankie;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs any number of RobotLinks on one thread, so that watching several robots doesn't cost
+ * a reader and a writer thread per robot. <br/>
+ * <br/>
+ * Each link must be over a ChannelTransport that isSelectable(). The selector thread connects
+ * it without blocking, reads and decodes whatever arrives, dispatches frames to the link's
+ * handlers, and writes out the link's outbound queue as it fills, in one batch per write as
+ * the link's own writer thread would. A failed connection is backed off and reconnected the
+ * same way RobotLink.run() does it, and the link's listener hears the same things. <br/>
+ * <br/>
+ * Every link shares the thread, so handlers for these links must not block; give slow ones a
+ * HandlerExecutor. The bookkeeping after each wakeup is linear in the number of links, which
+ * is fine for the handful one operator watches. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class LinkSelector implements Runnable {
+	// one busy link mustn't starve the rest; it gets this many reads per wakeup
+	private static final int MAX_READS = 16;
+
+	private static final int CONNECTING = 0;
+	private static final int CONNECTED = 1;
+	private static final int BACKOFF = 2;
+	private static final int DONE = 3;
+
+	private final Selector mSelector;
+	private final ConcurrentLinkedQueue<RobotLink> mAdded = new ConcurrentLinkedQueue<RobotLink>();
+	private final ArrayList<Session> mSessions = new ArrayList<Session>(); // selector thread only
+	private final AtomicInteger mCount = new AtomicInteger();
+	private volatile boolean mStop;
+	private Thread mThread;
+
+	// outbound queues call this when they go from empty to not
+	private final Runnable mWakeup = new Runnable() {
+		@Override
+		public void run() {
+			mSelector.wakeup();
+		}
+	};
+
+	public LinkSelector() throws IOException {
+		mSelector = Selector.open();
+	}
+
+	public synchronized void start() {
+		if( mThread != null ) return;
+		mThread = new Thread(this, "LinkSelector");
+		mThread.start();
+	}
+
+	/**
+	 * Stop every link, and then the thread.
+	 */
+	public void stop() throws InterruptedException {
+		mStop = true;
+		mSelector.wakeup();
+		Thread thread;
+		synchronized(this) {
+			thread = mThread;
+		}
+		if( thread != null ) thread.join();
+	}
+
+	/**
+	 * Whether a link's transport lets it be run by a LinkSelector.
+	 */
+	public static boolean canRun(RobotLink link) {
+		Transport t = link.getTransport();
+		return t instanceof ChannelTransport && ((ChannelTransport)t).isSelectable();
+	}
+
+	/**
+	 * Connect a link and run it on this selector's thread until it is stopped or fails. The
+	 * link must not be run any other way.
+	 */
+	public void add(RobotLink link) {
+		if( !canRun(link) ) {
+			throw new IllegalArgumentException(link.getTransport().getName() + " can't be selected");
+		}
+		link.getOutboundQueue().setWakeup(mWakeup);
+		mCount.incrementAndGet();
+		mAdded.add(link);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Number of links being run, including ones waiting to reconnect.
+	 */
+	public int getLinkCount() {
+		return mCount.get();
+	}
+
+	@Override
+	public void run() {
+		IOException error = null;
+		try {
+			while( !mStop ) {
+				mSelector.select(nextTimeout(System.nanoTime()));
+
+				RobotLink link;
+				while( (link = mAdded.poll()) != null ) {
+					Session s = new Session(link);
+					mSessions.add(s);
+					s.connect();
+				}
+
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while( keys.hasNext() ) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					((Session)key.attachment()).ready(key);
+				}
+
+				// stops, backoffs that have run out, and queues that have filled
+				long now = System.nanoTime();
+				for( int i=mSessions.size() - 1; i>=0; i-- ) {
+					mSessions.get(i).poll(now);
+				}
+			}
+		} catch(IOException e) {
+			// the selector itself failed; nothing left to run the links on
+			error = e;
+		} finally {
+			RobotLink link;
+			while( (link = mAdded.poll()) != null ) {
+				mSessions.add(new Session(link));
+			}
+			for( int i=mSessions.size() - 1; i>=0; i-- ) {
+				Session s = mSessions.get(i);
+				try {
+					s.mLink.stop();
+				} catch(IOException e) {
+					// already closed
+				}
+				s.finish(error);
+			}
+			try {
+				mSelector.close();
+			} catch(IOException e) {
+				// nothing to do about it
+			}
+		}
+	}
+
+	/**
+	 * How long select() may sleep before a backoff runs out, in milliseconds; 0 for as long
+	 * as it likes.
+	 */
+	private long nextTimeout(long now) {
+		long timeout = 0;
+		for( int i=0; i<mSessions.size(); i++ ) {
+			Session s = mSessions.get(i);
+			if( s.mState != BACKOFF ) continue;
+			long ms = Math.max(1, (s.mDeadline - now + 999999) / 1000000);
+			if( timeout == 0 || ms < timeout ) timeout = ms;
+		}
+		return timeout;
+	}
+
+	/**
+	 * One link's connection state on the selector thread.
+	 */
+	private class Session {
+		final RobotLink mLink;
+		final ChannelTransport mTransport;
+		final OutboundQueue mPackets;
+		final LinkStats mStats;
+		int mState = CONNECTING;
+		long mDeadline; // end of the backoff
+
+		// the same key when reading and writing use one channel
+		SelectionKey mReadKey;
+		SelectionKey mWriteKey;
+		boolean mWriting; // waiting for OP_WRITE
+
+		// the batch being written, and what is left of its bytes
+		final Packet mOut = new Packet();
+		ByteBuffer mOutBuffer;
+		Packet mInFlight;
+
+		Session(RobotLink link) {
+			mLink = link;
+			mTransport = (ChannelTransport)link.getTransport();
+			mPackets = link.getOutboundQueue();
+			mStats = link.getLinkStats();
+		}
+
+		void connect() {
+			mState = CONNECTING;
+			try {
+				if( mTransport.connectNonBlocking() ) {
+					connected();
+				} else {
+					mReadKey = mTransport.getReadChannel().register(mSelector, SelectionKey.OP_CONNECT, this);
+				}
+			} catch(IOException e) {
+				connectFailed(e);
+			}
+		}
+
+		void connected() throws IOException {
+			SelectableChannel in = mTransport.getReadChannel();
+			SelectableChannel out = mTransport.getWriteChannel();
+			if( mReadKey != null && mReadKey.channel() == in ) {
+				mReadKey.interestOps(SelectionKey.OP_READ);
+			} else {
+				mReadKey = in.register(mSelector, SelectionKey.OP_READ, this);
+			}
+			mWriteKey = out == in ? mReadKey : out.register(mSelector, 0, this);
+			mWriting = false;
+			mState = CONNECTED;
+			mLink.connected();
+			flush();
+		}
+
+		void ready(SelectionKey key) {
+			if( mState == DONE || !key.isValid() ) return;
+			try {
+				if( mState == CONNECTING ) {
+					if( key.isConnectable() && mTransport.finishConnect() ) connected();
+					return;
+				}
+				if( mState != CONNECTED ) return;
+				if( key == mReadKey && key.isReadable() ) read();
+				if( mState == CONNECTED && key == mWriteKey && key.isValid() && key.isWritable() ) flush();
+			} catch(IOException e) {
+				if( mState == CONNECTING ) {
+					connectFailed(e);
+				} else {
+					lost(e);
+				}
+			}
+		}
+
+		void poll(long now) {
+			if( mState == DONE ) return;
+			if( mLink.isStopped() ) {
+				finish(null);
+			} else if( mState == BACKOFF && now - mDeadline >= 0 ) {
+				connect();
+			} else if( mState == CONNECTED && !mWriting ) {
+				try {
+					flush();
+				} catch(IOException e) {
+					lost(e);
+				}
+			}
+		}
+
+		private void read() throws IOException {
+			ReadableByteChannel in = (ReadableByteChannel)mReadKey.channel();
+			for( int i=0; i<MAX_READS; i++ ) {
+				int n = mLink.read(in);
+				if( n < 0 ) throw new EOFException("Connection to " + mTransport.getName() + " closed");
+				if( n == 0 ) break;
+			}
+		}
+
+		/**
+		 * Write as much of the outbound queue as the channel will take without blocking.
+		 */
+		private void flush() throws IOException {
+			WritableByteChannel out = (WritableByteChannel)mWriteKey.channel();
+			while( true ) {
+				if( mInFlight == null ) {
+					Packet batch = mPackets.drain();
+					if( batch == null ) break;
+					mLink.encodeBatch(batch, mOut);
+					mInFlight = batch;
+					byte[] buf = mOut.getBuffer();
+					if( mOutBuffer == null || mOutBuffer.array() != buf ) {
+						mOutBuffer = ByteBuffer.wrap(buf);
+					}
+					mOutBuffer.clear();
+					mOutBuffer.limit(mOut.length());
+				}
+				out.write(mOutBuffer);
+				if( mOutBuffer.hasRemaining() ) {
+					setWriting(true);
+					return;
+				}
+				mLink.batchSent(mInFlight);
+				mInFlight = null;
+			}
+			setWriting(false);
+		}
+
+		private void setWriting(boolean writing) {
+			if( writing == mWriting ) return;
+			mWriting = writing;
+			// a full channel is this thread's blocked write
+			if( writing ) {
+				mStats.writeBlocking();
+			} else {
+				mStats.writeUnblocked();
+			}
+			int write = writing ? SelectionKey.OP_WRITE : 0;
+			if( mWriteKey == mReadKey ) {
+				mWriteKey.interestOps(SelectionKey.OP_READ | write);
+			} else {
+				mWriteKey.interestOps(write);
+			}
+		}
+
+		void connectFailed(IOException e) {
+			disconnect();
+			if( mLink.isStopped() ) {
+				finish(null);
+				return;
+			}
+			try {
+				backoff(mLink.connectFailed(e));
+			} catch(IOException e2) {
+				finish(e2);
+			}
+		}
+
+		void lost(IOException e) {
+			disconnect();
+			if( mLink.isStopped() ) {
+				finish(null);
+				return;
+			}
+			try {
+				backoff(mLink.connectionLost(e));
+			} catch(IOException e2) {
+				finish(e2);
+			}
+		}
+
+		private void backoff(long ms) {
+			mState = BACKOFF;
+			mDeadline = System.nanoTime() + ms * 1000000L;
+		}
+
+		/**
+		 * Drop the connection; closing the channels cancels their keys.
+		 */
+		private void disconnect() {
+			try {
+				mTransport.disconnect();
+			} catch(IOException e) {
+				// already disconnected
+			}
+			mStats.writeUnblocked();
+			mReadKey = null;
+			mWriteKey = null;
+			mWriting = false;
+			// a partly written batch goes down with the connection
+			recycleInFlight();
+		}
+
+		private void recycleInFlight() {
+			Packet p = mInFlight;
+			while( p != null ) {
+				Packet next = p.queueNext;
+				p.queueNext = null;
+				p.recycle();
+				p = next;
+			}
+			mInFlight = null;
+		}
+
+		void finish(Exception error) {
+			if( mState == DONE ) return;
+			mState = DONE;
+			recycleInFlight();
+			mSessions.remove(this);
+			mCount.decrementAndGet();
+			mPackets.setWakeup(null);
+			mLink.finish(error);
+		}
+	}
+}
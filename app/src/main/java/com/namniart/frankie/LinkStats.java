@@ -0,0 +1,247 @@
+package com.namniart.frankie;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and efficiency counters for one RobotLink: bytes and frames in each direction,
+ * the bytes added by escaping, the bytes saved by compact telemetry, decode errors, and the
+ * time the writer spent blocked. <br/>
+ * <br/>
+ * The counters run for the life of the link, across reconnects. Rates come from sample(),
+ * which works out the change since the previous sample; call it from one place, about once
+ * a second, and read the rates after it. Recording is an atomic add or two, so the reader
+ * and writer can both record without locking. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class LinkStats {
+	private final FrameDecoder mDecoder;
+
+	private final AtomicLong mBytesIn = new AtomicLong();
+	private final AtomicLong mFramesIn = new AtomicLong();
+	private final AtomicLong mCompactSaved = new AtomicLong();
+	private final AtomicLong mBytesOut = new AtomicLong();
+	private final AtomicLong mFramesOut = new AtomicLong();
+	private final AtomicLong mEscapeBytesOut = new AtomicLong();
+	private final AtomicLong mWriteBlocked = new AtomicLong();
+	// the write in progress, if it is blocked; written by the writer only
+	private volatile boolean mBlocked;
+	private volatile long mBlockedSince;
+
+	// the previous sample, and the rates since it; guarded by this
+	private long mSampleTime;
+	private long mSampleBytesIn, mSampleFramesIn, mSampleBytesOut, mSampleFramesOut, mSampleBlocked;
+	private double mBytesInRate, mFramesInRate, mBytesOutRate, mFramesOutRate, mBlockedFraction;
+
+	/**
+	 * @param decoder the link's inbound decoder, for its error counters
+	 */
+	LinkStats(FrameDecoder decoder) {
+		mDecoder = decoder;
+		mSampleTime = System.nanoTime();
+	}
+
+	void recordRead(int bytes) {
+		mBytesIn.addAndGet(bytes);
+	}
+
+	/**
+	 * Count an inbound frame, and for a compact one, the payload bytes its plain form would
+	 * have taken on top. Called before the handlers read p.
+	 */
+	void recordFrameIn(int type, Packet p) {
+		mFramesIn.incrementAndGet();
+		if( p.isCompact() ) {
+			int plain = EncodingMode.getPlainSize(type);
+			if( plain > 0 ) mCompactSaved.addAndGet(plain - p.sz());
+		}
+	}
+
+	/**
+	 * Count a batch of encoded frames about to be written, and the escape bytes in it. Every
+	 * escape puts exactly one ESC byte on the wire, and the type byte is never ESC, so the
+	 * overhead is the number of ESC bytes.
+	 */
+	void recordBatch(Packet out, int frames) {
+		byte[] buf = out.getBuffer();
+		int len = out.length();
+		int escapes = 0;
+		for( int i=0; i<len; i++ ) {
+			if( buf[i] == Packet.ESC ) escapes++;
+		}
+		mFramesOut.addAndGet(frames);
+		mBytesOut.addAndGet(len);
+		if( escapes > 0 ) mEscapeBytesOut.addAndGet(escapes);
+	}
+
+	/**
+	 * The writer is waiting for the link to take more bytes. Until writeUnblocked(), the
+	 * wait so far counts as blocked time, so a link that stalls for good still shows it.
+	 */
+	void writeBlocking() {
+		mBlockedSince = System.nanoTime();
+		mBlocked = true;
+	}
+
+	void writeUnblocked() {
+		if( !mBlocked ) return;
+		mBlocked = false;
+		mWriteBlocked.addAndGet(System.nanoTime() - mBlockedSince);
+	}
+
+	public long getBytesIn() {
+		return mBytesIn.get();
+	}
+
+	public long getFramesIn() {
+		return mFramesIn.get();
+	}
+
+	public long getBytesOut() {
+		return mBytesOut.get();
+	}
+
+	public long getFramesOut() {
+		return mFramesOut.get();
+	}
+
+	/**
+	 * Bytes added to outbound frames by escaping '\r' and ESC.
+	 */
+	public long getEscapeBytesOut() {
+		return mEscapeBytesOut.get();
+	}
+
+	/**
+	 * Inbound payload bytes saved by the compact telemetry encoding, before escaping.
+	 */
+	public long getCompactBytesSaved() {
+		return mCompactSaved.get();
+	}
+
+	/**
+	 * Total time spent blocked writing, in nanoseconds.
+	 */
+	public long getWriteBlockedTime() {
+		return blockedTime(System.nanoTime());
+	}
+
+	private long blockedTime(long now) {
+		// if the write finishes between these reads, its time turns up in the next sample
+		long blocked = mWriteBlocked.get();
+		if( mBlocked ) blocked += now - mBlockedSince;
+		return blocked;
+	}
+
+	/**
+	 * Frames the decoder threw away: too long, failing their CRC, or compact frames of a type
+	 * without a compact form.
+	 */
+	public long getDecodeErrors() {
+		return mDecoder.getErrorCount() + mDecoder.getCorruptCount() + mDecoder.getUnsupportedCount();
+	}
+
+	/**
+	 * Checked frames that never arrived, going by their sequence numbers.
+	 */
+	public long getLostFrames() {
+		return mDecoder.getLostCount();
+	}
+
+	/**
+	 * Average size of an inbound frame on the wire, terminator included.
+	 */
+	public double getAverageFrameSizeIn() {
+		long frames = mFramesIn.get();
+		return frames == 0 ? 0 : (double)mBytesIn.get() / frames;
+	}
+
+	/**
+	 * Average size of an outbound frame on the wire, terminator included.
+	 */
+	public double getAverageFrameSizeOut() {
+		long frames = mFramesOut.get();
+		return frames == 0 ? 0 : (double)mBytesOut.get() / frames;
+	}
+
+	/**
+	 * Bytes added by escaping, as a fraction of the outbound bytes before escaping.
+	 */
+	public double getEscapeOverhead() {
+		long escapes = mEscapeBytesOut.get();
+		long unescaped = mBytesOut.get() - escapes;
+		return unescaped <= 0 ? 0 : (double)escapes / unescaped;
+	}
+
+	/**
+	 * Work out the rates since the previous call.
+	 */
+	public synchronized void sample() {
+		long now = System.nanoTime();
+		long elapsed = now - mSampleTime;
+		if( elapsed <= 0 ) return;
+		double seconds = elapsed / 1e9;
+		long bytesIn = mBytesIn.get(), framesIn = mFramesIn.get();
+		long bytesOut = mBytesOut.get(), framesOut = mFramesOut.get();
+		long blocked = blockedTime(now);
+		mBytesInRate = (bytesIn - mSampleBytesIn) / seconds;
+		mFramesInRate = (framesIn - mSampleFramesIn) / seconds;
+		mBytesOutRate = (bytesOut - mSampleBytesOut) / seconds;
+		mFramesOutRate = (framesOut - mSampleFramesOut) / seconds;
+		mBlockedFraction = (double)(blocked - mSampleBlocked) / elapsed;
+		mSampleTime = now;
+		mSampleBytesIn = bytesIn;
+		mSampleFramesIn = framesIn;
+		mSampleBytesOut = bytesOut;
+		mSampleFramesOut = framesOut;
+		mSampleBlocked = blocked;
+	}
+
+	public synchronized double getBytesInPerSecond() {
+		return mBytesInRate;
+	}
+
+	public synchronized double getFramesInPerSecond() {
+		return mFramesInRate;
+	}
+
+	public synchronized double getBytesOutPerSecond() {
+		return mBytesOutRate;
+	}
+
+	public synchronized double getFramesOutPerSecond() {
+		return mFramesOutRate;
+	}
+
+	/**
+	 * Fraction of the time between the last two samples that the writer spent blocked; near
+	 * 1 means the link is running at capacity.
+	 */
+	public synchronized double getWriteBlockedFraction() {
+		return mBlockedFraction;
+	}
+
+	/**
+	 * A few lines summarizing the rates as of the last sample, and the totals, for display.
+	 */
+	public synchronized String format() {
+		return String.format("in: %.0f B/s, %.0f frames/s, avg %.1f B, compact saved %d B\n"
+				+ "out: %.0f B/s, %.0f frames/s, avg %.1f B, escapes +%.1f%%\n"
+				+ "write blocked %.1f%%; decode errors %d, lost %d",
+				mBytesInRate, mFramesInRate, getAverageFrameSizeIn(), getCompactBytesSaved(),
+				mBytesOutRate, mFramesOutRate, getAverageFrameSizeOut(), getEscapeOverhead() * 100,
+				mBlockedFraction * 100, getDecodeErrors(), getLostFrames());
+	}
+
+	/**
+	 * Write the summary from format().
+	 */
+	public void dump(Writer w) {
+		PrintWriter out = new PrintWriter(w);
+		out.println(format());
+		out.flush();
+	}
+}
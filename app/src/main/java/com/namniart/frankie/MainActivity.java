@@ -1,5 +1,8 @@
 package com.namniart.frankie;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Set;
 
@@ -9,9 +12,14 @@ import android.app.Dialog;
 import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.Context;
 import android.content.Intent;
+import android.hardware.input.InputManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.InputDevice;
 import android.view.InputEvent;
 import android.view.Menu;
@@ -19,13 +27,37 @@ import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ToggleButton;
 
 public class MainActivity extends Activity {
+    // registered once; a format per activity instance would pile up with every rotation
+    private static final int LOG_HEADING = FastLog.format("Heading %d");
+
 	// instance variables
 	RobotApplication mApp;
     private Joystick joystickHandler_;
 
+    // telemetry display; written by packet handlers, drawn once per frame
+    private final TelemetrySnapshot mTelemetry = new TelemetrySnapshot();
+    private final TelemetrySnapshot mShown = new TelemetrySnapshot();
+    private TelemetryHandlers mSessionTelemetry; // on the current session's registry
+    private final FrameTicker mFrameTicker = new FrameTicker();
+    private TextView mCompassView;
+    private TextView mGpsView;
+    private int mShownVersion = -1;
+    private int mShownCompass = -1;
+    private int mShownLatitude, mShownLongitude, mShownSatellites = -1;
+    private final StringBuilder mGpsText = new StringBuilder(64);
+    private char[] mGpsChars = new char[64];
+    // link statistics overlay; refreshed about once a second while shown
+    private static final long LINK_STATS_PERIOD_NS = 1000000000L;
+    private TextView mLinkStatsView;
+    private boolean mShowLinkStats;
+    private long mLinkStatsShownAt;
+    private final AutonomousMode mAutonomous = new AutonomousMode();
+    private DeviceListener mDeviceListener; // only created on API 16 and up
+
     // bluetooth-related variables
 	private BluetoothDevice mDevice;
 	private ArrayList<BluetoothDevice> mDevices;
@@ -39,51 +71,242 @@ public class MainActivity extends Activity {
         mApp = (RobotApplication)this.getApplication();
         joystickHandler_ = new Joystick(mApp);
 
-        mApp.addHandler('C', new PacketHandler(){
-        //Convert degrees to headings - compass
-            @Override
-            public void handlePacket(Packet p) {
-                int compass = p.reads32(); // degrees x10
-                String heading = "";
-                Log.d("Frankie", Integer.toString(compass));
-                if(compass < 225 || compass > 3375) heading = "N";
-                else if(compass < 675) heading = "NE";
-                else if(compass < 1125) heading = "E";
-                else if(compass < 1575) heading = "SE";
-                else if(compass < 2025) heading="S";
-                else if(compass < 2475) heading="SW";
-                else if(compass < 2925) heading="W";
-                else if(compass < 3375) heading="NW";
-                final String heading_final = heading;
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        TextView output = (TextView)findViewById(R.id.textViewCompass);
-                        output.setText(heading_final);
-                    }
-                });
-            }
-        });
-        mApp.addHandler('G', new PacketHandler(){
-            //Handle GPS data packets
-            @Override
-            public void handlePacket(Packet p) {
-                final int latitude = p.reads32();
-                final int longitude = p.reads32();
-                final int Num_Satellites = p.reads32();
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        TextView output = (TextView)findViewById(R.id.textViewGPS);
-                        output.setText("Latitude: " + latitude + "\nLongitude: " + longitude + "\n# of Satellites: " + Num_Satellites);
-                    }
-                });
-            }
-        });
+        mCompassView = (TextView)findViewById(R.id.textViewCompass);
+        mGpsView = (TextView)findViewById(R.id.textViewGPS);
+        mLinkStatsView = (TextView)findViewById(R.id.textViewLinkStats);
+
+        showCurrentSession();
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		mSessionTelemetry.remove();
+	}
+
+	/**
+	 * Show telemetry from the current session, and stop showing the one before it. Call
+	 * whenever the current session changes.
+	 */
+	private void showCurrentSession() {
+		if( mSessionTelemetry != null ) mSessionTelemetry.remove();
+		mSessionTelemetry = new TelemetryHandlers(mApp.getHwMan().getHandlerRegistry());
+	}
+
+	/**
+	 * Handlers that copy one stream of telemetry, from a robot session or a replay, into the
+	 * display. Compact telemetry is delta coded per stream, so every stream needs its own
+	 * message holders; handlers shared between robots would apply one robot's deltas to
+	 * another's values. The handlers only record the latest values; the display picks them
+	 * up once per frame.
+	 */
+	private class TelemetryHandlers {
+		private final HandlerRegistry mRegistry;
+		private final CompassReading mCompass = new CompassReading();
+		private final GpsFix mFix = new GpsFix();
+
+		private final PacketHandler mCompassHandler = new PacketHandler() {
+			@Override
+			public void handlePacket(Packet p) {
+				if( !mCompass.decode(p) ) return;
+				FastLog.d(FastLog.TELEMETRY, LOG_HEADING, mCompass.getHeading());
+				mTelemetry.setCompass(mCompass.getHeading());
+			}
+		};
+
+		private final PacketHandler mGpsHandler = new PacketHandler() {
+			@Override
+			public void handlePacket(Packet p) {
+				if( !mFix.decode(p) ) return;
+				mTelemetry.setGps(mFix.getLatitude(), mFix.getLongitude(), mFix.getSatellites());
+			}
+		};
+
+		public TelemetryHandlers(HandlerRegistry registry) {
+			mRegistry = registry;
+			registry.add(CompassReading.TYPE, mCompassHandler);
+			registry.add(GpsFix.TYPE, mGpsHandler);
+		}
+
+		public void remove() {
+			mRegistry.remove(CompassReading.TYPE, mCompassHandler);
+			mRegistry.remove(GpsFix.TYPE, mGpsHandler);
+		}
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mFrameTicker.start();
+		joystickHandler_.start();
+		if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ) {
+			if( mDeviceListener == null ) mDeviceListener = new DeviceListener(joystickHandler_);
+			((InputManager)getSystemService(Context.INPUT_SERVICE)).registerInputDeviceListener(mDeviceListener, null);
+		}
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		mFrameTicker.stop();
+		joystickHandler_.stop();
+		if( mDeviceListener != null ) {
+			((InputManager)getSystemService(Context.INPUT_SERVICE)).unregisterInputDeviceListener(mDeviceListener);
+		}
+	}
+
+	/**
+	 * Copy the latest telemetry to the screen. Runs once per display frame on the UI thread,
+	 * and only touches the views when something changed.
+	 */
+	private void updateTelemetryViews() {
+		if( mTelemetry.getVersion() == mShownVersion ) return;
+		mShownVersion = mTelemetry.copyTo(mShown);
+
+		int compass = mShown.getCompass();
+		if( compass != mShownCompass ) {
+			mShownCompass = compass;
+			//Convert degrees to headings - compass
+			String heading;
+			if(compass < 225 || compass > 3375) heading = "N";
+			else if(compass < 675) heading = "NE";
+			else if(compass < 1125) heading = "E";
+			else if(compass < 1575) heading = "SE";
+			else if(compass < 2025) heading="S";
+			else if(compass < 2475) heading="SW";
+			else if(compass < 2925) heading="W";
+			else heading="NW";
+			mCompassView.setText(heading);
+		}
+
+		if( mShown.getLatitude() != mShownLatitude || mShown.getLongitude() != mShownLongitude
+				|| mShown.getSatellites() != mShownSatellites ) {
+			mShownLatitude = mShown.getLatitude();
+			mShownLongitude = mShown.getLongitude();
+			mShownSatellites = mShown.getSatellites();
+			StringBuilder s = mGpsText;
+			s.setLength(0);
+			s.append("Latitude: ").append(mShownLatitude)
+				.append("\nLongitude: ").append(mShownLongitude)
+				.append("\n# of Satellites: ").append(mShownSatellites);
+			if( mGpsChars.length < s.length() ) {
+				mGpsChars = new char[s.length()];
+			}
+			s.getChars(0, s.length(), mGpsChars, 0);
+			mGpsView.setText(mGpsChars, 0, s.length());
+		}
+	}
+
+	/**
+	 * Show the link's throughput and efficiency statistics, if the overlay is on. Called once
+	 * per frame, but only takes a new sample about once a second, so the rates are per second.
+	 */
+	private void updateLinkStatsView() {
+		if( !mShowLinkStats ) return;
+		long now = System.nanoTime();
+		if( now - mLinkStatsShownAt < LINK_STATS_PERIOD_NS ) return;
+		mLinkStatsShownAt = now;
+		LinkStats stats = mApp.getHwMan().getLinkStats();
+		if( stats == null ) {
+			mLinkStatsView.setText("Not connected");
+			return;
+		}
+		stats.sample();
+		mLinkStatsView.setText(stats.format());
+	}
+
+	/**
+	 * Calls updateTelemetryViews() once per display frame while the activity is visible.
+	 * Uses Choreographer where it exists (API 16), and a 16ms timer on older devices.
+	 */
+	private class FrameTicker implements Runnable {
+		private static final long FALLBACK_FRAME_MS = 16;
+		private final Handler mHandler = new Handler();
+		private Choreographer.FrameCallback mCallback; // only created on API 16 and up
+		private boolean mRunning;
+
+		public void start() {
+			if( mRunning ) return;
+			mRunning = true;
+			if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ) {
+				if( mCallback == null ) mCallback = new VsyncCallback(this);
+				Choreographer.getInstance().postFrameCallback(mCallback);
+			} else {
+				mHandler.postDelayed(this, FALLBACK_FRAME_MS);
+			}
+		}
+
+		public void stop() {
+			mRunning = false;
+			if( mCallback != null ) {
+				Choreographer.getInstance().removeFrameCallback(mCallback);
+			}
+			mHandler.removeCallbacks(this);
+		}
+
+		@Override
+		public void run() {
+			if( !mRunning ) return;
+			updateTelemetryViews();
+			updateLinkStatsView();
+			if( mCallback != null ) {
+				Choreographer.getInstance().postFrameCallback(mCallback);
+			} else {
+				mHandler.postDelayed(this, FALLBACK_FRAME_MS);
+			}
+		}
+	}
+
+	/**
+	 * Forwards Choreographer frames to a Runnable. Kept separate so that older devices never
+	 * load a class that implements an interface they don't have.
+	 */
+	private static class VsyncCallback implements Choreographer.FrameCallback {
+		private final Runnable mTarget;
+
+		public VsyncCallback(Runnable target) {
+			mTarget = target;
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			mTarget.run();
+		}
+	}
+
+	/**
+	 * Tells the joystick when an input device is removed. Like VsyncCallback, kept separate so
+	 * that older devices never load it; there, the robot's deadman stops it when commands stop.
+	 */
+	private static class DeviceListener implements InputManager.InputDeviceListener {
+		private final Joystick mJoystick;
+
+		public DeviceListener(Joystick joystick) {
+			mJoystick = joystick;
+		}
+
+		@Override
+		public void onInputDeviceAdded(int deviceId) {
+		}
+
+		@Override
+		public void onInputDeviceRemoved(int deviceId) {
+			mJoystick.onDeviceRemoved(deviceId);
+		}
+
+		@Override
+		public void onInputDeviceChanged(int deviceId) {
+		}
 	}
 
 	private static final int CHOOSE_ID = Menu.FIRST;
 	private static final int STOP_ID = Menu.FIRST + 1;
+	private static final int LATENCY_ID = Menu.FIRST + 2;
+	private static final int SIMULATOR_ID = Menu.FIRST + 3;
+	private static final int RECORD_ID = Menu.FIRST + 4;
+	private static final int REPLAY_ID = Menu.FIRST + 5;
+	private static final int ADD_SIMULATOR_ID = Menu.FIRST + 6;
+	private static final int LINK_STATS_ID = Menu.FIRST + 7;
 	/**
 	 * create the context menu for this Activity
 	 */
@@ -94,6 +317,12 @@ public class MainActivity extends Activity {
 		//getMenuInflater().inflate(R.menu.activity_main, menu);
     	menu.add(0, CHOOSE_ID, 0, R.string.bluetooth_picker);
     	menu.add(0, STOP_ID, 0, R.string.bluetooth_stop);
+    	menu.add(0, LATENCY_ID, 0, R.string.latency_dump);
+    	menu.add(0, SIMULATOR_ID, 0, R.string.loopback);
+    	menu.add(0, RECORD_ID, 0, R.string.recording).setCheckable(true);
+    	menu.add(0, REPLAY_ID, 0, R.string.replay);
+    	menu.add(0, ADD_SIMULATOR_ID, 0, R.string.add_simulator);
+    	menu.add(0, LINK_STATS_ID, 0, R.string.link_stats).setCheckable(true);
     	return true;
     }
 
@@ -111,6 +340,7 @@ public class MainActivity extends Activity {
         switch (item.getItemId()) {
         case CHOOSE_ID:
         	mApp.stopHwMan();
+        	showCurrentSession();
         	Dialog dialog = ProgressDialog.show(this, "", "Looking for Bluetooth devices...", true);
         	BluetoothAdapter bt = BluetoothAdapter.getDefaultAdapter();
         	
@@ -147,11 +377,98 @@ public class MainActivity extends Activity {
         case STOP_ID:
         	// stop the HardwareManager
         	mApp.stopHwMan();
+        	showCurrentSession();
         	return true;        
+        case SIMULATOR_ID:
+        	// a simulated robot in this process, on the other end of a pipe
+        	try {
+        		PipeTransport[] pair = startSimulator();
+        		mApp.startHwMan(pair[0], this, true);
+        		showCurrentSession();
+        		mApp.getHwMan().setCompactTelemetry(true);
+        	} catch(IOException e) {
+        		builder.setMessage("Failed to start simulator: " + e.getMessage()).create().show();
+        	}
+        	return true;
+        case ADD_SIMULATOR_ID:
+        	// another simulated robot, alongside whatever we are already connected to
+        	try {
+        		PipeTransport[] pair = startSimulator();
+        		HardwareManager session = mApp.startSession(pair[0], this, true);
+        		session.setCompactTelemetry(true);
+        		Toast.makeText(this, mApp.getSessions().size() + " robots connected", Toast.LENGTH_SHORT).show();
+        	} catch(IOException e) {
+        		builder.setMessage("Failed to start simulator: " + e.getMessage()).create().show();
+        	}
+        	return true;
+        case RECORD_ID:
+        	HardwareManager hwMan = mApp.getHwMan();
+        	if( hwMan.isRecording() ) {
+        		hwMan.stopRecording();
+        	} else {
+        		try {
+        			hwMan.startRecording(new File(getExternalFilesDir(null), "recording"));
+        		} catch(IOException e) {
+        			builder.setMessage("Failed to start recording: " + e.getMessage()).create().show();
+        		}
+        	}
+        	item.setChecked(hwMan.isRecording());
+        	return true;
+        case REPLAY_ID:
+        	// play the last recording back through our handlers, in real time; it is a stream of
+        	// its own, so it gets its own display handlers
+        	HandlerRegistry replayHandlers = new HandlerRegistry(mApp.getHandlerRegistry());
+        	new TelemetryHandlers(replayHandlers);
+        	ReplayEngine replay = new ReplayEngine(new File(getExternalFilesDir(null), "recording"),
+        			replayHandlers);
+        	new Thread(replay, "ReplayEngine").start();
+        	return true;
+        case LINK_STATS_ID:
+        	mShowLinkStats = !mShowLinkStats;
+        	mLinkStatsView.setVisibility(mShowLinkStats ? View.VISIBLE : View.GONE);
+        	if( mShowLinkStats ) {
+        		// the first sample only sets the baseline for the rates
+        		LinkStats stats = mApp.getHwMan().getLinkStats();
+        		if( stats != null ) stats.sample();
+        		mLinkStatsView.setText("");
+        		mLinkStatsShownAt = System.nanoTime();
+        	}
+        	item.setChecked(mShowLinkStats);
+        	return true;
+        case LATENCY_ID:
+        	File f = new File(getExternalFilesDir(null), "latency.txt");
+        	try {
+        		FileWriter w = new FileWriter(f);
+        		try {
+        			mApp.getHwMan().getLatencyStats().dump(w);
+        			joystickHandler_.getControlLoop().dump(w);
+        			mApp.getHwMan().dumpConnectionStats(w);
+        			// the session's handlers, then the global ones it passes packets on to
+        			mApp.getHwMan().getHandlerRegistry().dump(w);
+        		} finally {
+        			w.close();
+        		}
+        		Toast.makeText(this, "Latency stats saved to " + f, Toast.LENGTH_SHORT).show();
+        	} catch(IOException e) {
+        		builder.setMessage("Failed to save latency stats: " + e.getMessage()).create().show();
+        	}
+        	return true;
         }
         return super.onMenuItemSelected(featureId, item);
     }
 
+	/**
+	 * Start a simulated robot in this process.
+	 * @return the pipe to it; the application end at index 0
+	 */
+	private PipeTransport[] startSimulator() throws IOException {
+		PipeTransport[] pair = PipeTransport.createPair();
+		RobotSimulator sim = new RobotSimulator(pair[1]);
+		sim.setCheckedFraming(true);
+		new Thread(sim, "RobotSimulator").start();
+		return pair;
+	}
+
 	/* this is called before onResume(), so we let onResume do the work of starting the worker thread
 	 * @see android.app.Activity#onActivityResult(int, int, android.content.Intent)
 	 */
@@ -165,6 +482,7 @@ public class MainActivity extends Activity {
 	        		mDevice = mDevices.get(intent.getIntExtra("index",0));
 	        		mDevices = null; // free up our device list
 	    			mApp.startHwMan(mDevice, this);
+	    			showCurrentSession();
 	        	}
 	        	break;
 	        }
@@ -191,8 +509,6 @@ public class MainActivity extends Activity {
     public boolean dispatchGenericMotionEvent(MotionEvent event)
     /*************************************************************************/
     {
-        Log.d("MainActivity", "MainActivity: dispatchGenericMotionEvent");
-
         initializeJoystickHandlerIfPossibleAndNecessary(event);
 
         boolean isJoystickEvent = ((event.getSource() & InputDevice.SOURCE_CLASS_JOYSTICK) != 0);
@@ -208,13 +524,7 @@ public class MainActivity extends Activity {
     }
     public void onAutonomousButton(View button){
         ToggleButton toggleButton = (ToggleButton)button;
-        Packet auto = new Packet('A');
-        if(toggleButton.isChecked()) {
-            auto.append((byte)1);
-        } else {
-            auto.append((byte)0);
-        }
-        auto.finish();
+        Packet auto = mAutonomous.setEnabled(toggleButton.isChecked()).encode();
         mApp.getHwMan().sendPacket(auto);
     }
 }
@@ -0,0 +1,161 @@
+package com.namniart.frankie;
+
+/**
+ * Base class for typed protocol messages. <br/>
+ * <br/>
+ * Each message is a mutable holder for the fields of one packet type, with a hand-written
+ * codec: decode() reads the fields straight out of a packet or decoded view, and encode()
+ * writes the type byte, the escaped fields and the terminator straight into an output packet.
+ * Holders are meant to be reused, so a handler can keep one and decode every packet into it
+ * without allocating. <br/>
+ * <br/>
+ * Telemetry messages also have a compact encoding, sent with the type letter in lower case.
+ * Its payload is a header byte and one zigzag varint per field. The header's low bit says
+ * whether the fields are absolute values (a key frame) or differences from the previous frame
+ * (a delta frame); the other seven bits count the frames of the stream. A receiver that finds
+ * a gap in the count, or starts late, ignores deltas until the next key frame rather than
+ * apply them to the wrong values. Every KEYFRAME_INTERVAL-th frame is a key frame, so that
+ * doesn't take long. Delta state lives in the holder, so one holder must decode one stream,
+ * and should see all of it. Which encoding the robot uses is negotiated with an EncodingMode
+ * request; decode() handles either. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public abstract class Message {
+	/** Every this many compact frames, one carries absolute values. */
+	public static final int KEYFRAME_INTERVAL = 16;
+
+	// compact header: delta flag, and a frame count in the other bits
+	private static final int DELTA = 1;
+	private static final int COUNT_MASK = 0x7F;
+
+	private int mSinceKey; // compact frames encoded since the last key frame
+	private int mCount; // compact frames encoded, for the header
+	private boolean mHaveKey; // a key frame has been decoded, and nothing missed since
+	private int mNextCount; // count expected in the next frame decoded
+	private long mSaved;
+	private long mSkipped;
+
+	/**
+	 * The packet type byte for this message.
+	 */
+	public abstract char getType();
+
+	/**
+	 * Number of payload bytes, before escaping.
+	 */
+	public abstract int getSize();
+
+	/**
+	 * Read the fields from p, starting at its read cursor.
+	 * @return false, leaving the fields untouched, if p is too short to hold this message
+	 */
+	public boolean decode(Packet p) {
+		if( p.isCompact() ) return decodeCompact(p);
+		if( p.sz() < getSize() ) return false;
+		readFields(p);
+		return true;
+	}
+
+	private boolean decodeCompact(Packet p) {
+		int start = p.sz();
+		if( !hasCompactEncoding() || start < 1 ) return false;
+		int header = p.reads8() & 0xFF;
+		boolean delta = (header & DELTA) != 0;
+		int count = header >> 1;
+		if( delta && (!mHaveKey || count != mNextCount) ) {
+			// a frame is missing, or we started late; nothing to apply it to until a key frame
+			mHaveKey = false;
+			mSkipped++;
+			return false;
+		}
+		readCompactFields(p, delta);
+		mHaveKey = true;
+		mNextCount = (count + 1) & COUNT_MASK;
+		mSaved += getSize() - (start - p.sz());
+		return true;
+	}
+
+	/**
+	 * Whether this message has a compact encoding.
+	 */
+	public boolean hasCompactEncoding() {
+		return false;
+	}
+
+	/**
+	 * Append this message to p as a complete compact frame, or as a plain one if it has no
+	 * compact encoding.
+	 */
+	public void encodeCompact(Packet p) {
+		if( !hasCompactEncoding() ) {
+			encode(p);
+			return;
+		}
+		boolean delta = mSinceKey != 0;
+		p.put((byte)(getType() | Packet.COMPACT));
+		int start = p.length();
+		p.append((byte)((mCount << 1) | (delta ? DELTA : 0)));
+		mCount = (mCount + 1) & COUNT_MASK;
+		writeCompactFields(p, delta);
+		// counts escaped bytes against unescaped ones, so if anything it undercounts
+		mSaved += getSize() - (p.length() - start);
+		p.finish();
+		if( ++mSinceKey == KEYFRAME_INTERVAL ) mSinceKey = 0;
+	}
+
+	/**
+	 * Payload bytes saved by the compact encoding, over every frame this holder has encoded
+	 * or decoded in it.
+	 */
+	public long getBytesSaved() {
+		return mSaved;
+	}
+
+	/**
+	 * Delta frames decode() ignored because a frame before them was missing.
+	 */
+	public long getSkippedCount() {
+		return mSkipped;
+	}
+
+	/**
+	 * Append this message to p as a complete frame: type, fields and terminator. p may
+	 * already hold other frames.
+	 */
+	public void encode(Packet p) {
+		p.put((byte)getType());
+		writeFields(p);
+		p.finish();
+	}
+
+	/**
+	 * Encode this message into a packet from the pool, ready for sendPacket().
+	 */
+	public Packet encode() {
+		Packet p = Packet.obtain();
+		encode(p);
+		return p;
+	}
+
+	protected abstract void readFields(Packet p);
+
+	protected abstract void writeFields(Packet p);
+
+	/**
+	 * Read the fields of a compact frame; for delta frames, add to the current values. Only
+	 * called if hasCompactEncoding().
+	 */
+	protected void readCompactFields(Packet p, boolean delta) {
+		throw new UnsupportedOperationException(getType() + " has no compact encoding");
+	}
+
+	/**
+	 * Write the fields of a compact frame; for delta frames, relative to the values written
+	 * in the last one. Only called if hasCompactEncoding().
+	 */
+	protected void writeCompactFields(Packet p, boolean delta) {
+		throw new UnsupportedOperationException(getType() + " has no compact encoding");
+	}
+}
@@ -0,0 +1,597 @@
+package com.namniart.frankie;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free queue of packets waiting to go to the robot. Any number of threads may offer()
+ * packets; a single writer thread takes them. <br/>
+ * <br/>
+ * Producers push onto an intrusive stack with a single compare-and-set, so they never block
+ * and never allocate. The consumer takes the whole stack at once and reverses it, which gives
+ * it every pending packet in the order they were offered, ready to be written as one batch. <br/>
+ * <br/>
+ * Packet types can also be marked as coalescing. Those skip the stack and go in a per-type slot
+ * instead, where a newer packet replaces an older one that hasn't been sent yet. This suits
+ * setpoints, where only the latest value matters. <br/>
+ * <br/>
+ * Every packet type belongs to a priority class, and each class has its own stack and slots.
+ * A batch holds the high priority packets first, then normal, then low, so safety packets are
+ * never stuck behind other traffic. Within a class, regular packets come before slot packets,
+ * each in the order they were offered. The time packets spend waiting is measured per class. <br/>
+ * <br/>
+ * The queue can be bounded. Once it holds its capacity, what happens to the next packet is up
+ * to the overflow policy: drop the oldest queued packet of the same or lower priority, drop
+ * the new packet, block the sender for a while waiting for space, or coalesce the new packet
+ * into its type's latest-value slot. Only the overflow path ever locks or blocks. The current
+ * depth, the deepest the queue has been, and the number of packets dropped are all tracked. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class OutboundQueue {
+	public static final int PRIORITY_HIGH = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_LOW = 2;
+	public static final int PRIORITY_CLASSES = 3;
+
+	/** When full, throw away the oldest queued packet of the same or lower priority. */
+	public static final int OVERFLOW_DROP_OLDEST = 0;
+	/** When full, throw away the packet being offered. */
+	public static final int OVERFLOW_DROP_NEWEST = 1;
+	/** When full, make the sender wait for space, up to the block timeout; then drop the packet. */
+	public static final int OVERFLOW_BLOCK = 2;
+	/** When full, keep only the latest packet of each type offered while full. */
+	public static final int OVERFLOW_COALESCE = 3;
+
+	// stands in for the head of a stack while a producer removes its oldest packet
+	private static final Packet BUSY = new Packet();
+
+	private final AtomicReferenceArray<Packet> mHeads = new AtomicReferenceArray<Packet>(PRIORITY_CLASSES);
+	private volatile Thread mConsumer;
+	private volatile Runnable mWakeup;
+	private volatile boolean mClosed;
+
+	// per-type configuration; copied on write so that offer() can read it without locking
+	private volatile byte[] mPriority = new byte[256];
+	private volatile boolean[] mCoalescing = new boolean[256];
+	private volatile int[][] mCoalescingTypes = new int[PRIORITY_CLASSES][0];
+
+	// latest-value slots, indexed by packet type
+	private final AtomicReferenceArray<Packet> mSlots = new AtomicReferenceArray<Packet>(256);
+	private final AtomicLongArray mCoalesced = new AtomicLongArray(256);
+	// bitmap of types with a packet put in their slot by OVERFLOW_COALESCE
+	private final AtomicLongArray mOverflowSlots = new AtomicLongArray(4);
+	private final long[] mOverflowTaken = new long[4]; // consumer's copy
+
+	// bound and overflow handling
+	private volatile int mCapacity = Integer.MAX_VALUE;
+	private volatile int mOverflowPolicy = OVERFLOW_DROP_OLDEST;
+	private volatile long mBlockTimeout = 100000000L; // 100ms
+	private final AtomicInteger mDepth = new AtomicInteger();
+	private final AtomicInteger mHighWater = new AtomicInteger();
+	private final AtomicLongArray mDropped = new AtomicLongArray(256);
+	private final AtomicInteger mBlocked = new AtomicInteger();
+	private final Object mSpace = new Object();
+
+	// queue wait statistics per priority class, in nanoseconds; only the consumer writes them
+	private final AtomicLongArray mWaitCount = new AtomicLongArray(PRIORITY_CLASSES);
+	private final AtomicLongArray mWaitTotal = new AtomicLongArray(PRIORITY_CLASSES);
+	private final AtomicLongArray mWaitMax = new AtomicLongArray(PRIORITY_CLASSES);
+
+	public OutboundQueue() {
+		byte[] priority = new byte[256];
+		Arrays.fill(priority, (byte)PRIORITY_NORMAL);
+		mPriority = priority;
+	}
+
+	/**
+	 * Choose whether packets of a type replace unsent packets of the same type instead of
+	 * queueing behind them. Meant to be set up before packets start flowing.
+	 */
+	public synchronized void setCoalescing(int type, boolean coalesce) {
+		boolean[] flags = mCoalescing.clone();
+		flags[type & 0xFF] = coalesce;
+		updateCoalescingTypes(flags, mPriority);
+		mCoalescing = flags;
+	}
+
+	/**
+	 * Put packets of a type in one of the PRIORITY_ classes. Everything is PRIORITY_NORMAL
+	 * unless set otherwise. Meant to be set up before packets start flowing.
+	 */
+	public synchronized void setPriority(int type, int priority) {
+		if( priority < 0 || priority >= PRIORITY_CLASSES ) {
+			throw new IllegalArgumentException("No such priority class: " + priority);
+		}
+		byte[] prio = mPriority.clone();
+		prio[type & 0xFF] = (byte)priority;
+		updateCoalescingTypes(mCoalescing, prio);
+		mPriority = prio;
+	}
+
+	/**
+	 * The priority class of a packet type.
+	 */
+	public int getPriority(int type) {
+		return mPriority[type & 0xFF];
+	}
+
+	private void updateCoalescingTypes(boolean[] flags, byte[] prio) {
+		int[][] types = new int[PRIORITY_CLASSES][];
+		for( int c=0; c<PRIORITY_CLASSES; c++ ) {
+			int n = 0;
+			for( int i=0; i<256; i++ ) {
+				if( flags[i] && prio[i] == c ) n++;
+			}
+			types[c] = new int[n];
+			n = 0;
+			for( int i=0; i<256; i++ ) {
+				if( flags[i] && prio[i] == c ) types[c][n++] = i;
+			}
+		}
+		mCoalescingTypes = types;
+	}
+
+	/**
+	 * Limit the number of packets the queue holds. Coalescing slots count towards the depth,
+	 * but since each type has only one, they can take it past the capacity by a few packets.
+	 * Unbounded (Integer.MAX_VALUE) by default.
+	 */
+	public void setCapacity(int capacity) {
+		if( capacity < 1 ) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		mCapacity = capacity;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Choose what happens to packets offered while the queue is full; one of the OVERFLOW_
+	 * constants. OVERFLOW_DROP_OLDEST by default.
+	 */
+	public void setOverflowPolicy(int policy) {
+		if( policy < OVERFLOW_DROP_OLDEST || policy > OVERFLOW_COALESCE ) {
+			throw new IllegalArgumentException("No such overflow policy: " + policy);
+		}
+		mOverflowPolicy = policy;
+	}
+
+	public int getOverflowPolicy() {
+		return mOverflowPolicy;
+	}
+
+	/**
+	 * How long offer() waits for space under OVERFLOW_BLOCK, in milliseconds. Don't block the
+	 * UI thread for long.
+	 */
+	public void setBlockTimeout(long ms) {
+		mBlockTimeout = ms * 1000000L;
+	}
+
+	/**
+	 * Number of packets waiting to be sent.
+	 */
+	public int getDepth() {
+		return mDepth.get();
+	}
+
+	/**
+	 * The most packets that have been waiting at once since the last reset.
+	 */
+	public int getHighWaterMark() {
+		return mHighWater.get();
+	}
+
+	public void resetHighWaterMark() {
+		mHighWater.set(mDepth.get());
+	}
+
+	/**
+	 * Number of packets of a type thrown away because the queue was full.
+	 */
+	public long getDroppedCount(int type) {
+		return mDropped.get(type & 0xFF);
+	}
+
+	/**
+	 * Number of packets of any type thrown away because the queue was full.
+	 */
+	public long getDroppedCount() {
+		long total = 0;
+		for( int i=0; i<256; i++ ) {
+			total += mDropped.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Number of packets of a type that were replaced by a newer one before being sent.
+	 */
+	public long getCoalescedCount(int type) {
+		return mCoalesced.get(type & 0xFF);
+	}
+
+	/**
+	 * Number of packets of any type that were replaced before being sent.
+	 */
+	public long getCoalescedCount() {
+		long total = 0;
+		for( int i=0; i<256; i++ ) {
+			total += mCoalesced.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Number of packets of a priority class that have been taken from the queue.
+	 */
+	public long getWaitCount(int priority) {
+		return mWaitCount.get(priority);
+	}
+
+	/**
+	 * Average time packets of a priority class spent in the queue, in nanoseconds.
+	 */
+	public long getMeanWait(int priority) {
+		long count = mWaitCount.get(priority);
+		return count > 0 ? mWaitTotal.get(priority) / count : 0;
+	}
+
+	/**
+	 * Longest time a packet of a priority class spent in the queue, in nanoseconds.
+	 */
+	public long getMaxWait(int priority) {
+		return mWaitMax.get(priority);
+	}
+
+	/**
+	 * Queue a packet, waking the consumer if it is waiting. If the queue is full, the overflow
+	 * policy decides what happens; a packet that is dropped is recycled.
+	 * @return false if this packet was dropped
+	 */
+	public boolean offer(Packet p) {
+		int type = p.getBuffer()[0] & 0xFF;
+		p.enqueueTime = System.nanoTime();
+		if( mCoalescing[type] ) {
+			putSlot(p, type, false);
+			return true;
+		}
+
+		int priority = mPriority[type];
+		if( !reserve() ) {
+			switch( mOverflowPolicy ) {
+			case OVERFLOW_DROP_OLDEST:
+				do {
+					if( !dropOldest(priority) ) {
+						// nothing of the same or lower priority to make room with
+						drop(p, type);
+						return false;
+					}
+				} while( !reserve() );
+				break;
+			case OVERFLOW_BLOCK:
+				if( !awaitSpace() ) {
+					drop(p, type);
+					return false;
+				}
+				break;
+			case OVERFLOW_COALESCE:
+				putSlot(p, type, true);
+				return true;
+			default:
+				drop(p, type);
+				return false;
+			}
+		}
+
+		Packet head;
+		do {
+			head = mHeads.get(priority);
+			while( head == BUSY ) {
+				// another producer is removing the oldest packet; it won't be long
+				Thread.yield();
+				head = mHeads.get(priority);
+			}
+			p.queueNext = head;
+		} while( !mHeads.compareAndSet(priority, head, p) );
+		if( head == null ) {
+			// the consumer only ever sleeps on an empty queue
+			wake();
+		}
+		return true;
+	}
+
+	/**
+	 * Put p in its type's latest-value slot, replacing any unsent packet there.
+	 * @param overflow whether p is coalesced because the queue is full, rather than because
+	 * its type always is
+	 */
+	private void putSlot(Packet p, int type, boolean overflow) {
+		Packet old = mSlots.getAndSet(type, p);
+		// drain() only looks in overflow slots whose bit is set, so set it before waking the
+		// consumer; otherwise it could drain in between, miss the packet and go back to sleep
+		if( overflow ) setOverflowBit(type);
+		if( old != null ) {
+			// the consumer hadn't taken it yet, so it's ours to throw away
+			mCoalesced.incrementAndGet(type);
+			old.recycle();
+		} else {
+			updateHighWater(mDepth.incrementAndGet());
+			wake();
+		}
+	}
+
+	private void setOverflowBit(int type) {
+		int word = type >> 6;
+		long bit = 1L << (type & 63);
+		long bits;
+		do {
+			bits = mOverflowSlots.get(word);
+			if( (bits & bit) != 0 ) return;
+		} while( !mOverflowSlots.compareAndSet(word, bits, bits | bit) );
+	}
+
+	/**
+	 * Count a packet towards the depth if there is room for it.
+	 */
+	private boolean reserve() {
+		int capacity = mCapacity;
+		int depth;
+		do {
+			depth = mDepth.get();
+			if( depth >= capacity ) return false;
+		} while( !mDepth.compareAndSet(depth, depth + 1) );
+		updateHighWater(depth + 1);
+		return true;
+	}
+
+	private void updateHighWater(int depth) {
+		int high;
+		while( depth > (high = mHighWater.get()) ) {
+			if( mHighWater.compareAndSet(high, depth) ) return;
+		}
+	}
+
+	private void drop(Packet p, int type) {
+		mDropped.incrementAndGet(type);
+		p.recycle();
+	}
+
+	/**
+	 * Throw away the oldest queued packet of the lowest priority class that has any, no higher
+	 * than priority.
+	 * @return false if all those classes were empty
+	 */
+	private boolean dropOldest(int priority) {
+		for( int c=PRIORITY_CLASSES - 1; c>=priority; c-- ) {
+			// take the stack out from under everyone else; its oldest packet is at the bottom
+			Packet head;
+			do {
+				head = mHeads.get(c);
+				if( head == null ) break;
+				if( head == BUSY ) {
+					Thread.yield();
+					continue;
+				}
+				if( mHeads.compareAndSet(c, head, BUSY) ) break;
+			} while( true );
+			if( head == null ) continue;
+
+			Packet oldest;
+			if( head.queueNext == null ) {
+				oldest = head;
+				head = null;
+			} else {
+				Packet p = head;
+				while( p.queueNext.queueNext != null ) {
+					p = p.queueNext;
+				}
+				oldest = p.queueNext;
+				p.queueNext = null;
+			}
+			mHeads.set(c, head);
+			if( head != null ) wake();
+
+			mDepth.decrementAndGet();
+			drop(oldest, oldest.getBuffer()[0] & 0xFF);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wait up to the block timeout for room in the queue, and reserve it.
+	 * @return false if there was still no room, or the queue was closed
+	 */
+	private boolean awaitSpace() {
+		long deadline = System.nanoTime() + mBlockTimeout;
+		mBlocked.incrementAndGet();
+		try {
+			synchronized(mSpace) {
+				while( !reserve() ) {
+					long wait = deadline - System.nanoTime();
+					if( mClosed || wait <= 0 ) return false;
+					mSpace.wait(wait / 1000000L, (int)(wait % 1000000L));
+				}
+				return true;
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			mBlocked.decrementAndGet();
+		}
+	}
+
+	private void signalSpace() {
+		if( mBlocked.get() > 0 ) {
+			synchronized(mSpace) {
+				mSpace.notifyAll();
+			}
+		}
+	}
+
+	private void wake() {
+		Runnable wakeup = mWakeup;
+		if( wakeup != null ) wakeup.run();
+		Thread consumer = mConsumer;
+		if( consumer != null ) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Take every queued packet without waiting.
+	 * @return the first packet to send, linked to the rest through Packet.queueNext, or null
+	 * if the queue was empty
+	 */
+	public Packet drain() {
+		long now = System.nanoTime();
+		Packet first = null;
+		int[][] slotTypes = mCoalescingTypes;
+		byte[] prio = mPriority;
+		long[] overflow = mOverflowTaken;
+		for( int w=0; w<overflow.length; w++ ) {
+			overflow[w] = mOverflowSlots.get(w) != 0 ? mOverflowSlots.getAndSet(w, 0) : 0;
+		}
+		int taken = 0;
+		boolean busy = false;
+		// build the batch back to front, so start with the lowest priority
+		for( int c=PRIORITY_CLASSES - 1; c>=0; c-- ) {
+			long count = 0;
+			long total = 0;
+			long max = 0;
+
+			int[] types = slotTypes[c];
+			for( int i=types.length - 1; i>=0; i-- ) {
+				Packet s = mSlots.getAndSet(types[i], null);
+				if( s != null ) {
+					long wait = now - s.enqueueTime;
+					count++;
+					total += wait;
+					if( wait > max ) max = wait;
+					s.queueNext = first;
+					first = s;
+				}
+			}
+
+			// packets coalesced on overflow are newer than anything on the stack
+			for( int w=overflow.length - 1; w>=0; w-- ) {
+				long bits = overflow[w];
+				while( bits != 0 ) {
+					int bit = 63 - Long.numberOfLeadingZeros(bits);
+					bits &= ~(1L << bit);
+					int type = (w << 6) | bit;
+					if( prio[type] != c ) continue;
+					Packet s = mSlots.getAndSet(type, null);
+					if( s != null ) {
+						long wait = now - s.enqueueTime;
+						count++;
+						total += wait;
+						if( wait > max ) max = wait;
+						s.queueNext = first;
+						first = s;
+					}
+				}
+			}
+
+			// the stack is newest first; pushing each onto the front of the batch reverses it
+			Packet p;
+			do {
+				p = mHeads.get(c);
+				if( p == BUSY ) {
+					// a producer is trimming this stack; it will wake us when it's done
+					busy = true;
+					p = null;
+					break;
+				}
+			} while( p != null && !mHeads.compareAndSet(c, p, null) );
+			Packet tail = first;
+			first = null;
+			Packet last = null;
+			while( p != null ) {
+				long wait = now - p.enqueueTime;
+				count++;
+				total += wait;
+				if( wait > max ) max = wait;
+				Packet next = p.queueNext;
+				p.queueNext = first;
+				if( first == null ) last = p;
+				first = p;
+				p = next;
+			}
+			if( last != null ) {
+				last.queueNext = tail;
+			} else {
+				first = tail;
+			}
+
+			if( count > 0 ) {
+				taken += count;
+				mWaitCount.lazySet(c, mWaitCount.get(c) + count);
+				mWaitTotal.lazySet(c, mWaitTotal.get(c) + total);
+				if( max > mWaitMax.get(c) ) mWaitMax.lazySet(c, max);
+			}
+		}
+		if( taken > 0 ) {
+			mDepth.addAndGet(-taken);
+			signalSpace();
+		}
+		if( busy && first == null ) Thread.yield();
+		return first;
+	}
+
+	/**
+	 * Wait until there is something in the queue, then take all of it. Only one thread may
+	 * call this.
+	 * @return the first packet to send, as with drain(), or null once the queue has been closed
+	 */
+	public Packet take() throws InterruptedException {
+		mConsumer = Thread.currentThread();
+		while( true ) {
+			if( mClosed ) return null;
+			Packet p = drain();
+			if( p != null ) return p;
+			LockSupport.park(this);
+			if( Thread.interrupted() ) throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * For a consumer that polls with drain() instead of sleeping in take(), such as a
+	 * LinkSelector: run wakeup whenever take() would have been woken, on the producer's
+	 * thread. It must be quick and must not block.
+	 */
+	public void setWakeup(Runnable wakeup) {
+		mWakeup = wakeup;
+	}
+
+	/**
+	 * Wake the consumer and make take() return null from now on.
+	 */
+	public void close() {
+		mClosed = true;
+		wake();
+		synchronized(mSpace) {
+			mSpace.notifyAll();
+		}
+	}
+
+	/**
+	 * Recycle every packet still in the queue.
+	 */
+	public void clear() {
+		Packet p = drain();
+		while( p != null ) {
+			Packet next = p.queueNext;
+			p.queueNext = null;
+			p.recycle();
+			p = next;
+		}
+	}
+}
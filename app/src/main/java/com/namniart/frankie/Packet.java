@@ -1,110 +1,385 @@
 package com.namniart.frankie;
 
-import java.util.LinkedList;
-import java.util.List;
-
+/**
+ * A single protocol message, stored as its on-the-wire (escaped) bytes in a growable
+ * byte array with separate read and write cursors. <br/>
+ * <br/>
+ * Packets are recycled through a small pool to avoid allocating on every message; use
+ * obtain() to get one and recycle() to give it back once nobody refers to it any more. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
 public class Packet {
-	private List<Byte> data;
-	private static final byte ESC = 0x1b;
-	
+	static final byte ESC = 0x1b;
+	static final byte TERMINATOR = (byte)'\r';
+	// set in the type byte of checked frames, which carry a sequence number and CRC
+	static final int CHECKED = 0x80;
+	// set in the type byte of compact frames, making the type letter lower case
+	static final int COMPACT = 0x20;
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final int MAX_POOL_SIZE = 32;
+
+	private byte[] data;
+	private int length; // write cursor
+	private int pos;    // read cursor
+	private boolean escaped = true; // false for views over already-decoded bytes
+	private boolean compact; // payload is in the compact encoding; see Message
+
+	// recycling pool; a simple free list threaded through the packets themselves
+	private static final Object sPoolSync = new Object();
+	private static Packet sPool;
+	private static int sPoolSize;
+	private Packet next;
+
+	// intrusive link and timestamp used while the packet sits in an OutboundQueue
+	Packet queueNext;
+	long enqueueTime;
+
+	// System.nanoTime() of the event that caused this packet, for latency statistics; 0 if unknown
+	private long originTime;
+
 	// constructors
+	public Packet() {
+		data = new byte[DEFAULT_CAPACITY];
+	}
+
 	public Packet(char t) {
-		data = new LinkedList<Byte>();
-		data.add((byte)t);
+		this();
+		put((byte)t);
 	}
-	
+
 	public Packet(byte[] in) {
-		data = new LinkedList<Byte>();
-		for( byte b : in) {
-			data.add(b);
+		data = new byte[Math.max(in.length, DEFAULT_CAPACITY)];
+		System.arraycopy(in, 0, data, 0, in.length);
+		length = in.length;
+	}
+
+	// pool methods
+	/**
+	 * Get an empty packet from the pool, or allocate a new one if the pool is empty.
+	 */
+	public static Packet obtain() {
+		synchronized(sPoolSync) {
+			if( sPool != null ) {
+				Packet p = sPool;
+				sPool = p.next;
+				p.next = null;
+				sPoolSize--;
+				return p;
+			}
+		}
+		return new Packet();
+	}
+
+	/**
+	 * Get a packet from the pool with its type byte already written.
+	 */
+	public static Packet obtain(char t) {
+		Packet p = obtain();
+		p.put((byte)t);
+		return p;
+	}
+
+	/**
+	 * Get a packet from the pool holding a copy of len raw bytes of buf, starting at off.
+	 */
+	public static Packet obtain(byte[] buf, int off, int len) {
+		Packet p = obtain();
+		p.put(buf, off, len);
+		return p;
+	}
+
+	/**
+	 * Return this packet to the pool. The caller must not touch the packet after this.
+	 */
+	public void recycle() {
+		clear();
+		synchronized(sPoolSync) {
+			if( sPoolSize < MAX_POOL_SIZE ) {
+				next = sPool;
+				sPool = this;
+				sPoolSize++;
+			}
 		}
 	}
-	
-	public Packet(List<Byte> in) {
-		data = new LinkedList<Byte>(in); // make our own copy because we will modify it
+
+	/**
+	 * Turn this packet into a read-only view over len already-decoded bytes of buf, starting at
+	 * off. Nothing is copied, and reads do not undo escaping. Views belong to whoever made them
+	 * and must not be recycled.
+	 */
+	public void wrap(byte[] buf, int off, int len) {
+		data = buf;
+		pos = off;
+		length = off + len;
+		escaped = false;
+		compact = false;
+	}
+
+	/**
+	 * Make this packet a copy of what is left to read in p, reusing this packet's buffer. A
+	 * copy of a view reads like the view did, without undoing escaping, and keeps its compact
+	 * flag. This packet must not be a view itself.
+	 */
+	void copyView(Packet p) {
+		clear();
+		put(p.data, p.pos, p.length - p.pos);
+		escaped = p.escaped;
+		compact = p.compact;
+		originTime = p.originTime;
+	}
+
+	/**
+	 * Whether the payload is in the compact encoding, as sent in frames whose type letter is
+	 * lower case. Only set on views made by FrameDecoder or ReplayEngine.
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	void setCompact(boolean c) {
+		compact = c;
+	}
+
+	/**
+	 * Reset both cursors, emptying the packet but keeping its buffer.
+	 */
+	public void clear() {
+		length = 0;
+		pos = 0;
+		originTime = 0;
+		compact = false;
 	}
-	
+
+	/**
+	 * Record when the event that caused this packet happened, as System.nanoTime(), so that
+	 * the time from that event to the wire can be measured.
+	 */
+	public void setOriginTime(long nanos) {
+		originTime = nanos;
+	}
+
+	public long getOriginTime() {
+		return originTime;
+	}
+
 	// utility methods
 	public byte[] toByteArray() {
-		byte[] out = new byte[data.size()];
-		int i=0;
-		for(byte b : data) {
-			out[i] = b;
-			i++;
-		}
+		byte[] out = new byte[length];
+		System.arraycopy(data, 0, out, 0, length);
 		return out;
 	}
-	
+
+	/**
+	 * The backing array; only the first length() bytes are valid. Lets callers write the
+	 * packet out without copying it first.
+	 */
+	public byte[] getBuffer() {
+		return data;
+	}
+
+	/**
+	 * Index in getBuffer() of the next byte to read.
+	 */
+	public int position() {
+		return pos;
+	}
+
+	/**
+	 * Move the read cursor back to an index returned by position(), so that the next reader
+	 * sees the packet as it was then.
+	 */
+	void seek(int position) {
+		pos = position;
+	}
+
+	/**
+	 * Index in getBuffer() just past the last valid byte; for packets that aren't views, the
+	 * number of bytes written.
+	 */
+	public int length() {
+		return length;
+	}
+
+	private void ensureCapacity(int extra) {
+		if( length + extra > data.length ) {
+			byte[] grown = new byte[Math.max(data.length * 2, length + extra)];
+			System.arraycopy(data, 0, grown, 0, length);
+			data = grown;
+		}
+	}
+
+	/**
+	 * Append a raw byte, without escaping.
+	 */
+	public void put(byte b) {
+		ensureCapacity(1);
+		data[length++] = b;
+	}
+
+	/**
+	 * Append raw bytes, without escaping.
+	 */
+	public void put(byte[] buf, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(buf, off, data, length, len);
+		length += len;
+	}
+
 	// append methods
 	public void append(byte b) {
 		if( b != '\r' && b != ESC ) {
-			data.add(b);
+			ensureCapacity(1);
+			data[length++] = b;
 		} else {
-			data.add(ESC);
-			data.add((byte)(b ^ ESC));
+			ensureCapacity(2);
+			data[length++] = ESC;
+			data[length++] = (byte)(b ^ ESC);
 		}
 	}
-	
+
 	public void append(int a) {
+		if( !needsEscape(a) ) {
+			// common case: copy all four bytes at once
+			ensureCapacity(4);
+			data[length++] = (byte)a;
+			data[length++] = (byte)(a >> 8);
+			data[length++] = (byte)(a >> 16);
+			data[length++] = (byte)(a >> 24);
+			return;
+		}
 		for(int i=0; i<4; i++) {
 			append((byte)(a & 0xFF));
 			a >>= 8;
 		}
 	}
-	
+
+	/**
+	 * Whether any byte of a is '\r' or ESC.
+	 */
+	private static boolean needsEscape(int a) {
+		for( int i=0; i<4; i++ ) {
+			byte b = (byte)(a >> (8*i));
+			if( b == TERMINATOR || b == ESC ) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Append a signed int as a zigzag varint: 7 bits per byte, low bits first, with the high
+	 * bit set on every byte but the last. Small magnitudes of either sign take one byte.
+	 */
+	public void appendVarint(int v) {
+		int z = (v << 1) ^ (v >> 31);
+		while( (z & ~0x7F) != 0 ) {
+			append((byte)((z & 0x7F) | 0x80));
+			z >>>= 7;
+		}
+		append((byte)z);
+	}
+
 	public void append(float f) {
 		append(Float.floatToIntBits(f));
 	}
-	
+
 	public void finish() {
-		data.add((byte)'\r');
+		put((byte)'\r');
+	}
+
+	/**
+	 * Append a finished packet as a checked frame: the type byte with CHECKED set, sequence
+	 * number, payload, and a CRC-16 of all of those, little-endian, before the terminator.
+	 * The sequence number and CRC are escaped like the payload; the CRC covers unescaped bytes.
+	 * @param frame a finished packet in the plain format
+	 * @param seq sequence number; only the low byte is sent
+	 */
+	public void putChecked(Packet frame, int seq) {
+		byte[] src = frame.data;
+		int end = frame.length - 1; // leave out the terminator
+		ensureCapacity(end + 7);
+		byte type = (byte)(src[0] | CHECKED);
+		data[length++] = type;
+		int crc = Crc16.update(Crc16.INIT, type);
+		append((byte)seq);
+		crc = Crc16.update(crc, (byte)seq);
+		for( int i=1; i<end; i++ ) {
+			byte b = src[i];
+			data[length++] = b; // already escaped
+			if( b == ESC && i + 1 < end ) {
+				b = (byte)(src[++i] ^ ESC);
+				data[length++] = src[i];
+			}
+			crc = Crc16.update(crc, b);
+		}
+		append((byte)crc);
+		append((byte)(crc >> 8));
+		put(TERMINATOR);
 	}
-	
+
 	// read methods
 	public byte reads8() {
-		if( data.size()  > 0) {
-			byte b = data.remove(0);
-			if( b == ESC ) {
-				if( data.size() > 0 )
-					b ^= data.remove(0);
+		if( pos < length ) {
+			byte b = data[pos++];
+			if( b == ESC && escaped ) {
+				if( pos < length )
+					b ^= data[pos++];
 			}
 			return b;
 		}
 		return 0;
 	}
-	
+
 	public int reads32() {
+		if( !escaped && length - pos >= 4 ) {
+			// decoded views need no unescaping; read the four bytes directly
+			int res = (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8)
+					| ((data[pos + 2] & 0xFF) << 16) | ((data[pos + 3] & 0xFF) << 24);
+			pos += 4;
+			return res;
+		}
 		int res = 0;
-		//StringBuffer s = new StringBuffer("Got data: ");
 		for( int i=0; i<4; i++ ) {
 			byte b = reads8();
-			//s.append((int)b).append(" ");
 			res |= (((int)b) & 0xFF) << (8*i);
 		}
-		//System.out.println(s);
 		return res;
 	}
-	
+
+	/**
+	 * Read a zigzag varint written by appendVarint().
+	 */
+	public int readVarint() {
+		int z = 0;
+		for( int shift=0; shift<32; shift+=7 ) {
+			byte b = reads8();
+			z |= (b & 0x7F) << shift;
+			if( b >= 0 ) break;
+		}
+		return (z >>> 1) ^ -(z & 1);
+	}
+
+	/**
+	 * Number of bytes left to read.
+	 */
 	public int sz() {
-		return data.size();
+		return length - pos;
 	}
-	
+
 	public String toString() {
 		StringBuilder s = new StringBuilder("Packet(");
-		if( data.size() > 0 ) {
-			s.append((char)data.get(0).byteValue());
+		if( pos < length ) {
+			s.append((char)data[pos]);
 		} else {
 			s.append("no type");
 		}
 		s.append(")");
-		if( data.size() > 1 ) {
+		if( length - pos > 1 ) {
 			s.append(" <");
-			s.append(data.get(1));
-			if( data.size() > 2 ) {
-				for( int i=2; i<data.size(); i++ ) {
-					s.append(", ");
-					s.append(data.get(i));
-				}
+			s.append(data[pos + 1]);
+			for( int i=pos + 2; i<length; i++ ) {
+				s.append(", ");
+				s.append(data[i]);
 			}
 			s.append(">");
 		}
@@ -0,0 +1,122 @@
+package com.namniart.frankie;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * In-process transport: two endpoints joined back to back by a pair of byte pipes. <br/>
+ * <br/>
+ * Create both ends with createPair(); whatever one end writes, the other end reads. Used to
+ * run the whole protocol stack against a simulated robot in the same process, with no
+ * link speed limit. <br/>
+ * <br/>
+ * The pipes are NIO pipes, so either end can be run by a LinkSelector; each end is used
+ * either through its streams or through its channels, not both. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class PipeTransport implements ChannelTransport {
+	private final Pipe.SourceChannel mIn;
+	private final Pipe.SinkChannel mOut;
+	private final InputStream mInput;
+	private final OutputStream mOutput;
+	private final String mName;
+
+	private PipeTransport(Pipe in, Pipe out, String name) {
+		mIn = in.source();
+		mOut = out.sink();
+		mInput = Channels.newInputStream(mIn);
+		mOutput = Channels.newOutputStream(mOut);
+		mName = name;
+	}
+
+	/**
+	 * Create two connected endpoints.
+	 * @return the application end at index 0, and the robot end at index 1
+	 */
+	public static PipeTransport[] createPair() throws IOException {
+		Pipe toRobot = Pipe.open();
+		Pipe fromRobot = Pipe.open();
+		return new PipeTransport[] {
+			new PipeTransport(fromRobot, toRobot, "loopback robot"),
+			new PipeTransport(toRobot, fromRobot, "loopback application"),
+		};
+	}
+
+	@Override
+	public void connect() throws IOException {
+		if( !mIn.isOpen() || !mOut.isOpen() ) {
+			throw new IOException("Pipe closed");
+		}
+	}
+
+	@Override
+	public boolean canReconnect() {
+		return false;
+	}
+
+	@Override
+	public boolean isSelectable() {
+		return true;
+	}
+
+	@Override
+	public boolean connectNonBlocking() throws IOException {
+		connect();
+		mIn.configureBlocking(false);
+		mOut.configureBlocking(false);
+		return true;
+	}
+
+	@Override
+	public boolean finishConnect() {
+		return true;
+	}
+
+	@Override
+	public SelectableChannel getReadChannel() {
+		return mIn;
+	}
+
+	@Override
+	public SelectableChannel getWriteChannel() {
+		return mOut;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return mInput;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return mOutput;
+	}
+
+	/**
+	 * A pipe can't be put back together, so this is the same as close().
+	 */
+	@Override
+	public void disconnect() throws IOException {
+		close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			mIn.close();
+		} finally {
+			mOut.close();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+}
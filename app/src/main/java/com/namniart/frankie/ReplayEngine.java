@@ -0,0 +1,235 @@
+package com.namniart.frankie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a log written by FrameRecorder back through a HandlerRegistry, the same dispatch path
+ * RobotLink uses, so handlers and the UI can be exercised with field data and no robot. <br/>
+ * <br/>
+ * Frames can be replayed in real time, at N times real time, or as fast as possible; the last
+ * doubles as a throughput benchmark for handler chains. Only inbound frames are replayed
+ * unless setOutbound() says otherwise. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class ReplayEngine implements Runnable {
+	/** Speed for setSpeed() that replays without waiting between frames. */
+	public static final double AS_FAST_AS_POSSIBLE = 0;
+
+	private final File mDir;
+	private final HandlerRegistry mHandlers;
+	private double mSpeed = 1;
+	private boolean mInbound = true;
+	private boolean mOutbound = false;
+	private volatile boolean mStop;
+
+	private long mFrames;
+	private long mElapsed;
+
+	/**
+	 * @param dir directory holding the recorder's segment files
+	 * @param handlers handlers to replay frames through
+	 */
+	public ReplayEngine(File dir, HandlerRegistry handlers) {
+		mDir = dir;
+		mHandlers = handlers;
+	}
+
+	/**
+	 * Replay at speed times real time; 1 for real time, AS_FAST_AS_POSSIBLE for no waiting.
+	 */
+	public void setSpeed(double speed) {
+		mSpeed = speed;
+	}
+
+	/**
+	 * Choose whether to replay frames received from the robot. On by default.
+	 */
+	public void setInbound(boolean inbound) {
+		mInbound = inbound;
+	}
+
+	/**
+	 * Choose whether to replay frames sent to the robot, for handlers that stand in for it.
+	 * Off by default.
+	 */
+	public void setOutbound(boolean outbound) {
+		mOutbound = outbound;
+	}
+
+	public void stop() {
+		mStop = true;
+	}
+
+	/**
+	 * Number of frames dispatched by the last run().
+	 */
+	public long getFrameCount() {
+		return mFrames;
+	}
+
+	/**
+	 * Wall-clock time the last run() took, in nanoseconds.
+	 */
+	public long getElapsed() {
+		return mElapsed;
+	}
+
+	/**
+	 * Replay the whole log. Blocks until it is done or stop() is called.
+	 */
+	@Override
+	public void run() {
+		try {
+			replay();
+		} catch(IOException e) {
+			FastLog.e(FastLog.RECORDING, "ReplayEngine stopped: " + e);
+		}
+	}
+
+	/**
+	 * Replay the whole log, oldest segment first.
+	 */
+	public void replay() throws IOException {
+		List<MappedByteBuffer> segments = openSegments();
+		Packet view = new Packet();
+		byte[] payload = new byte[0xFFFF];
+		long first = 0;
+		boolean started = false;
+		long start = System.nanoTime();
+		mFrames = 0;
+
+		for( MappedByteBuffer b : segments ) {
+			b.position(FrameRecorder.HEADER_SIZE);
+			while( !mStop && b.remaining() >= FrameRecorder.RECORD_HEADER_SIZE ) {
+				int len = b.getShort() & 0xFFFF;
+				if( len == 0 ) break; // end of segment
+				int direction = b.get();
+				int type = b.get() & 0xFF;
+				long nanos = b.getLong();
+				b.get(payload, 0, len);
+				if( direction == FrameRecorder.INBOUND ? !mInbound : !mOutbound ) continue;
+
+				if( !started ) {
+					first = nanos;
+					started = true;
+				}
+				if( mSpeed > 0 ) {
+					// frames from the two directions can be slightly out of order; never wait backwards
+					long due = start + (long)((nanos - first) / mSpeed);
+					long wait = due - System.nanoTime();
+					if( wait > 0 ) LockSupport.parkNanos(wait);
+				}
+
+				view.wrap(payload, 0, len);
+				if( type >= 'a' && type <= 'z' ) {
+					// the compact form of an upper case type, as FrameDecoder would give it
+					type &= ~Packet.COMPACT;
+					view.setCompact(true);
+				}
+				mHandlers.dispatch(type, view);
+				mFrames++;
+			}
+		}
+		mElapsed = System.nanoTime() - start;
+	}
+
+	/**
+	 * Map the segments of the most recent recording in the directory, in the order they were
+	 * written.
+	 */
+	private List<MappedByteBuffer> openSegments() throws IOException {
+		final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+		long newest = Long.MIN_VALUE;
+		for( int i=0; ; i++ ) {
+			File f = FrameRecorder.segmentFile(mDir, i);
+			if( !f.exists() ) break;
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			MappedByteBuffer b;
+			try {
+				b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			if( b.getInt(0) != FrameRecorder.MAGIC || b.getInt(4) != FrameRecorder.VERSION ) {
+				throw new IOException(f + " is not a frame recording");
+			}
+			newest = Math.max(newest, b.getLong(16));
+			segments.add(b);
+		}
+
+		// segments left over from an earlier recording have an older start time
+		List<MappedByteBuffer> current = new ArrayList<MappedByteBuffer>();
+		for( MappedByteBuffer b : segments ) {
+			if( b.getLong(16) == newest ) current.add(b);
+		}
+		Collections.sort(current, new Comparator<MappedByteBuffer>() {
+			@Override
+			public int compare(MappedByteBuffer a, MappedByteBuffer b) {
+				long sa = a.getLong(8);
+				long sb = b.getLong(8);
+				return sa < sb ? -1 : (sa == sb ? 0 : 1);
+			}
+		});
+		return current;
+	}
+
+	/**
+	 * Command line: ReplayEngine DIR [--speed N | --max] [--outbound] <br/>
+	 * Replays a recording through handlers that decode 'C' and 'G' frames the way the app
+	 * does, and reports how many frames per second they got through.
+	 */
+	public static void main(String[] args) throws Exception {
+		if( args.length < 1 ) {
+			System.err.println("usage: ReplayEngine DIR [--speed N | --max] [--outbound]");
+			return;
+		}
+		HandlerRegistry handlers = new HandlerRegistry();
+		final TelemetrySink sink = new TelemetrySink();
+		handlers.add(CompassReading.TYPE, new PacketHandler() {
+			private final CompassReading mCompass = new CompassReading();
+
+			@Override
+			public void handlePacket(Packet p) {
+				if( mCompass.decode(p) ) sink.value += mCompass.getHeading();
+			}
+		});
+		handlers.add(GpsFix.TYPE, new PacketHandler() {
+			private final GpsFix mFix = new GpsFix();
+
+			@Override
+			public void handlePacket(Packet p) {
+				if( mFix.decode(p) ) sink.value += mFix.getLatitude() + mFix.getLongitude() + mFix.getSatellites();
+			}
+		});
+
+		ReplayEngine replay = new ReplayEngine(new File(args[0]), handlers);
+		for( int i=1; i<args.length; i++ ) {
+			if( args[i].equals("--speed") ) replay.setSpeed(Double.parseDouble(args[++i]));
+			else if( args[i].equals("--max") ) replay.setSpeed(AS_FAST_AS_POSSIBLE);
+			else if( args[i].equals("--outbound") ) replay.setOutbound(true);
+			else throw new IllegalArgumentException("Unknown argument: " + args[i]);
+		}
+		replay.replay();
+		double seconds = replay.getElapsed() / 1e9;
+		System.out.println("Replayed " + replay.getFrameCount() + " frames in " + seconds + "s ("
+				+ (long)(replay.getFrameCount() / seconds) + " frames/s); checksum " + sink.value);
+	}
+
+	// keeps the JIT from optimizing the command line handlers away
+	private static class TelemetrySink {
+		long value;
+	}
+}
@@ -1,18 +1,28 @@
 package com.namniart.frankie;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-
 import android.app.Activity;
 import android.app.Application;
 import android.bluetooth.BluetoothDevice;
+import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Application state shared by the activities: the robot sessions and the global packet
+ * handlers. <br/>
+ * <br/>
+ * Any number of sessions, one HardwareManager per robot, can run at once. One of them is the
+ * current one, which the controls drive. Sessions over pipes and TCP all share one
+ * LinkSelector I/O thread; only Bluetooth sessions need threads of their own. <br/>
+ */
 public class RobotApplication extends Application {
 
 	private HardwareManager mHwMan;
-	private Map<Integer, List<PacketHandler>> mHandlers;
+	private HandlerRegistry mHandlers;
+	private final ArrayList<HardwareManager> mSessions = new ArrayList<HardwareManager>();
+	private LinkSelector mSelector; // null if there is no shared I/O thread
 
 	/**
 	 * Called when application is created.
@@ -22,8 +32,24 @@ public class RobotApplication extends Application {
 	@Override
 	public void onCreate() {
 		super.onCreate();
+		FastLog.start(new FastLog.Sink() {
+			@Override
+			public void write(int level, String tag, String msg) {
+				Log.println(level, tag, msg);
+			}
+		});
+		// the telemetry handlers decode on the I/O thread, where compact streams have to be
+		// decoded in order, and hand the values to the UI through a TelemetrySnapshot; they are
+		// too quick to be worth an executor
+		mHandlers = new HandlerRegistry();
 		mHwMan = new StubHardwareManager(this);
-		mHandlers = new HashMap<Integer, List<PacketHandler>>();
+		try {
+			mSelector = new LinkSelector();
+			mSelector.start();
+		} catch(IOException e) {
+			// every session gets its own threads instead
+			Log.e("RobotApplication", "No shared I/O thread: " + e.toString(), e);
+		}
 	}
 	
 	/**
@@ -34,7 +60,17 @@ public class RobotApplication extends Application {
 	@Override
 	public void onTerminate() {
 		super.onTerminate();
-		mHwMan.sendStop();
+		for( HardwareManager session : getSessions() ) {
+			stopSession(session);
+		}
+		if( mSelector != null ) {
+			try {
+				mSelector.stop();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		mHandlers.shutdown();
 	}
 	
 	/**
@@ -49,7 +85,7 @@ public class RobotApplication extends Application {
 	 * Stop the current HardwareManager
 	 */
 	public void stopHwMan() {
-		mHwMan.sendStop();
+		stopSession(mHwMan);
 		mHwMan = new StubHardwareManager(this);
 	}
 
@@ -58,37 +94,103 @@ public class RobotApplication extends Application {
 	 * @param device The new bluetooth device to use
 	 */
 	public void startHwMan(BluetoothDevice device, Activity parent) {
-		mHwMan.sendStop();
-		mHwMan = new HardwareManager(device, this, parent);
-		mHwMan.start();
+		startHwMan(new BluetoothTransport(device), parent);
+	}
+
+	/**
+	 * Start a new HardwareManager over any transport, such as a TCP connection to a simulator.
+	 * Stops the current HardwareManager if one is running.
+	 * @param transport The connection to the robot
+	 */
+	public void startHwMan(Transport transport, Activity parent) {
+		startHwMan(transport, parent, false);
+	}
+
+	/**
+	 * Start a new HardwareManager over any transport, with checked framing if the robot uses it.
+	 * Stops the current HardwareManager if one is running.
+	 * @param transport The connection to the robot
+	 * @param checked use checked framing from the first frame; see HardwareManager.setCheckedFraming()
+	 */
+	public void startHwMan(Transport transport, Activity parent, boolean checked) {
+		stopSession(mHwMan);
+		mHwMan = startSession(transport, parent, checked);
+	}
+
+	/**
+	 * Start a session with another robot, leaving the others, and the current one, running.
+	 * @param transport The connection to the robot
+	 * @return the new session
+	 */
+	public HardwareManager startSession(Transport transport, Activity parent) {
+		return startSession(transport, parent, false);
+	}
+
+	/**
+	 * Start a session with another robot, leaving the others, and the current one, running.
+	 * The framing is set before the link starts, so it applies to the very first frames.
+	 * @param transport The connection to the robot
+	 * @param checked use checked framing; see HardwareManager.setCheckedFraming()
+	 * @return the new session
+	 */
+	public HardwareManager startSession(Transport transport, Activity parent, boolean checked) {
+		HardwareManager session = new HardwareManager(transport, this, parent);
+		session.setCheckedFraming(checked);
+		synchronized(mSessions) {
+			mSessions.add(session);
+		}
+		session.start(mSelector);
+		return session;
+	}
+
+	/**
+	 * Stop a session. If it is the current one, it stays current until another is started.
+	 */
+	public void stopSession(HardwareManager session) {
+		synchronized(mSessions) {
+			mSessions.remove(session);
+		}
+		session.sendStop();
+	}
+
+	/**
+	 * Every running session, current or not.
+	 */
+	public List<HardwareManager> getSessions() {
+		synchronized(mSessions) {
+			return new ArrayList<HardwareManager>(mSessions);
+		}
 	}
 	
 	/**
-	 * Add a handler for a particular type of packet
+	 * Add a handler for a particular type of packet from every robot. For one robot only, use
+	 * HardwareManager.addHandler(); handlers that decode telemetry must, since compact
+	 * telemetry is delta coded per robot.
 	 */
 	public void addHandler(int type, PacketHandler p) {
-		if( !mHandlers.containsKey(type) ) {
-			mHandlers.put(type, new LinkedList<PacketHandler>());
-		}
-		mHandlers.get(type).add(p);
+		mHandlers.add(type, p);
 	}
 	
 	/**
 	 * Remove a handler for a particular type of packet
 	 */
 	public void removeHandler(int type, PacketHandler p) {
-		if( mHandlers.containsKey(type) ) {
-			mHandlers.get(type).remove(p);
-			// don't delete the list, even if it's empty, because we're very likely to reuse it
-		}
+		mHandlers.remove(type, p);
 	}
 	
 	/**
 	 * Get the packet handlers for a particular type of packet
 	 * @param type: The type of packet
-	 * @return a list of handlers
+	 * @return the handlers; empty, never null, if there are none
 	 */
-	public List<PacketHandler> getHandlers(int type) {
+	public PacketHandler[] getHandlers(int type) {
 		return mHandlers.get(type);
 	}
+
+	/**
+	 * Get the table of all packet handlers, for dispatching packets
+	 */
+	public HandlerRegistry getHandlerRegistry() {
+		return mHandlers;
+	}
 }
@@ -0,0 +1,493 @@
+package com.namniart.frankie;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The protocol stack for one connection to a robot: framing, dispatch and outbound queueing
+ * over a Transport. <br/>
+ * <br/>
+ * run() connects, starts a writer thread, and then reads and dispatches frames on the calling
+ * thread until stop() is called or the connection fails. With setReconnect(true), a connection
+ * that fails after it was established is retried with exponential backoff instead; the
+ * outbound queue, its policies and the handlers carry over to the new connection. Nothing here
+ * depends on Android, so the same code can be driven over a PipeTransport or TcpTransport on
+ * any JVM. <br/>
+ * <br/>
+ * Links over a ChannelTransport can instead be handed to a LinkSelector, which runs many of
+ * them on one thread, with the same framing, queueing and reconnecting. <br/>
+ * <br/>
+ * Serial communication protocol: each frame is a type byte, a payload in which '\r' and ESC
+ * are escaped as ESC followed by the byte XOR ESC, and a '\r' terminator. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class RobotLink implements Runnable {
+
+	/**
+	 * Told about changes in the state of the link. Called from the link's threads.
+	 */
+	public interface Listener {
+		public void onConnected(RobotLink link);
+
+		/**
+		 * The connection was lost, and the link is about to try to reconnect. Only called
+		 * when reconnecting is enabled.
+		 */
+		public void onDisconnected(RobotLink link, Exception e);
+
+		/**
+		 * The link was closed by stop().
+		 */
+		public void onClosed(RobotLink link);
+
+		/**
+		 * The link failed, and has shut down.
+		 */
+		public void onError(RobotLink link, Exception e);
+	}
+
+	private final Transport mTransport;
+	private final HandlerRegistry mHandlers;
+	private final OutboundQueue mPackets;
+	private final FrameDecoder mDecoder;
+	private Listener mListener;
+	private volatile boolean mStop;
+	private volatile IOException mWriteError;
+
+	private final LatencyStats mLatency = new LatencyStats();
+	private final LinkStats mStats;
+	private volatile FrameRecorder mRecorder;
+	private volatile boolean mChecked;
+
+	// reconnecting
+	private volatile boolean mReconnect;
+	private volatile long mMinBackoff = 100;
+	private volatile long mMaxBackoff = 5000;
+	private final Object mBackoffLock = new Object();
+	private final AtomicLong mReconnects = new AtomicLong();
+	private final LatencyHistogram mReconnectTime = new LatencyHistogram();
+	private final LatencyHistogram mFirstFrameTime = new LatencyHistogram();
+	// thread running the link only
+	private long mConnectedAt;
+	private boolean mAwaitingFirstFrame;
+	private boolean mConnectedOnce;
+	private long mBackoff;
+	private long mLostAt;
+	// writer thread only, once connected
+	private int mSeq;
+
+	private final FrameDecoder.FrameListener mDispatcher = new FrameDecoder.FrameListener() {
+		@Override
+		public void onFrame(int type, Packet p) {
+			long decoded = System.nanoTime();
+			if( mAwaitingFirstFrame ) {
+				mAwaitingFirstFrame = false;
+				mFirstFrameTime.record(decoded - mConnectedAt);
+			}
+			mStats.recordFrameIn(type, p);
+			FrameRecorder recorder = mRecorder;
+			if( recorder != null ) recorder.recordInbound(type, p, decoded);
+			mHandlers.dispatch(type, p);
+			mLatency.record(LatencyStats.DECODE, type, decoded - mDecoder.getReadTime());
+			mLatency.record(LatencyStats.HANDLER, type, System.nanoTime() - decoded);
+		}
+	};
+
+	/**
+	 * @param transport connection to the robot
+	 * @param handlers handlers for inbound packets
+	 */
+	public RobotLink(Transport transport, HandlerRegistry handlers) {
+		mTransport = transport;
+		mHandlers = handlers;
+		mPackets = new OutboundQueue();
+		mDecoder = new FrameDecoder();
+		mStats = new LinkStats(mDecoder);
+	}
+
+	public void setListener(Listener l) {
+		mListener = l;
+	}
+
+	public Transport getTransport() {
+		return mTransport;
+	}
+
+	/**
+	 * The queue of packets waiting to be sent, for configuration and statistics.
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return mPackets;
+	}
+
+	/**
+	 * Latency histograms for packets sent and received over this link.
+	 */
+	public LatencyStats getLatencyStats() {
+		return mLatency;
+	}
+
+	/**
+	 * Throughput and efficiency counters for this link.
+	 */
+	public LinkStats getLinkStats() {
+		return mStats;
+	}
+
+	/**
+	 * Send checked frames, with a sequence number and CRC, instead of plain ones, and accept
+	 * only checked frames from the robot. Only for robots that have been set up to send them.
+	 * Without this, checked frames from the robot are still accepted, alongside plain ones.
+	 * Set it before the link starts; frames already in flight are framed the old way.
+	 */
+	public void setCheckedFraming(boolean checked) {
+		mChecked = checked;
+		mDecoder.setCheckedOnly(checked);
+	}
+
+	/**
+	 * The inbound frame decoder, for its error counters. Only the reader thread may use it
+	 * for anything else.
+	 */
+	public FrameDecoder getDecoder() {
+		return mDecoder;
+	}
+
+	/**
+	 * Reconnect when an established connection fails, rather than shutting down. A connection
+	 * that can't be made in the first place is still reported through onError(), and so is
+	 * any failure of a transport that can't reconnect (see Transport.canReconnect()).
+	 */
+	public void setReconnect(boolean reconnect) {
+		mReconnect = reconnect;
+	}
+
+	/**
+	 * Time to wait between reconnection attempts. Starts at min, doubles after each failed
+	 * attempt up to max, and goes back to min once a connection is made.
+	 * @param minMs first wait, in milliseconds
+	 * @param maxMs longest wait, in milliseconds
+	 */
+	public void setBackoff(long minMs, long maxMs) {
+		mMinBackoff = minMs;
+		mMaxBackoff = Math.max(minMs, maxMs);
+	}
+
+	/**
+	 * Number of times the link has reconnected after losing its connection.
+	 */
+	public long getReconnectCount() {
+		return mReconnects.get();
+	}
+
+	/**
+	 * Time from losing the connection to having it back, including the backoff.
+	 */
+	public LatencyHistogram getReconnectTimes() {
+		return mReconnectTime;
+	}
+
+	/**
+	 * Time from each connection being made to the first frame arriving over it.
+	 */
+	public LatencyHistogram getFirstFrameTimes() {
+		return mFirstFrameTime;
+	}
+
+	/**
+	 * Write a one-line summary of the reconnect count and timings, in milliseconds.
+	 */
+	public void dumpConnectionStats(java.io.Writer w) {
+		PrintWriter out = new PrintWriter(w);
+		out.println(mTransport.getName() + ": " + mReconnects.get() + " reconnects; reconnect p50 "
+				+ mReconnectTime.getPercentile(50) / 1000000.0 + " ms, max "
+				+ mReconnectTime.getMax() / 1000000.0 + " ms; first frame p50 "
+				+ mFirstFrameTime.getPercentile(50) / 1000000.0 + " ms, max "
+				+ mFirstFrameTime.getMax() / 1000000.0 + " ms");
+		out.flush();
+	}
+
+	/**
+	 * Record every frame sent or received from now on; null to stop recording. The recorder
+	 * must already be started.
+	 */
+	public void setRecorder(FrameRecorder recorder) {
+		mRecorder = recorder;
+	}
+
+	/**
+	 * Connect, then read until stopped. Blocks for the life of the link. Don't call this for
+	 * a link that has been given to a LinkSelector.
+	 */
+	@Override
+	public void run() {
+		Exception error = null;
+		try {
+			while( !mStop ) {
+				try {
+					mTransport.connect();
+				} catch(IOException e) {
+					if( mStop ) break;
+					// still out of range, or the robot is still rebooting
+					waitBackoff(connectFailed(e));
+					continue;
+				}
+				if( mStop ) break; // stop() raced with connect()
+
+				connected();
+				IOException lost = session();
+				if( lost == null ) break; // stopped
+				waitBackoff(connectionLost(lost));
+			}
+		} catch(Exception e) {
+			error = e;
+		}
+		finish(error);
+	}
+
+	/**
+	 * Run one connection: start a writer, then read and dispatch until the connection fails
+	 * or stop() is called. Leaves the transport disconnected and the outbound queue open.
+	 * @return why the connection failed, or null if the link was stopped
+	 */
+	private IOException session() throws InterruptedException {
+		Writer writer = null;
+		try {
+			InputStream in = mTransport.getInputStream();
+			writer = new Writer(mTransport.getOutputStream());
+			writer.start();
+
+			// read loop; blocks in the stream until data arrives or stop() closes the transport
+			while( !mStop ) {
+				int n = mDecoder.read(in, mDispatcher);
+				if( n < 0 ) {
+					throw new EOFException("Connection to " + mTransport.getName() + " closed");
+				}
+				mStats.recordRead(n);
+			}
+			return null;
+		} catch(IOException e) {
+			// closing the transport is how stop() wakes us up
+			if( mStop ) return null;
+			// a failed write disconnects the transport too; that is the more useful error
+			return mWriteError != null ? mWriteError : e;
+		} finally {
+			try {
+				mTransport.disconnect();
+			} catch(IOException e) {
+				// already disconnected
+			}
+			if( writer != null ) {
+				// wakes it from take() or a blocked write; packets still queued wait for the next connection
+				writer.interrupt();
+				writer.join();
+			}
+		}
+	}
+
+	// connection life cycle; shared by run() and LinkSelector, and called only from the one
+	// thread that runs the link
+
+	boolean isStopped() {
+		return mStop;
+	}
+
+	/**
+	 * A connection has been made: reset the per-connection state, update the reconnect
+	 * statistics, and tell the listener.
+	 */
+	void connected() {
+		long now = System.nanoTime();
+		if( mConnectedOnce ) {
+			mReconnectTime.record(now - mLostAt);
+			mReconnects.incrementAndGet();
+		}
+		mConnectedOnce = true;
+		mBackoff = mMinBackoff;
+		mWriteError = null;
+		mSeq = 0;
+		mDecoder.reset();
+		mConnectedAt = now;
+		mAwaitingFirstFrame = true;
+		if( mListener != null ) mListener.onConnected(this);
+	}
+
+	/**
+	 * A connection attempt failed.
+	 * @return how long to wait before trying again, in milliseconds
+	 * @throws IOException e, if the link should give up instead
+	 */
+	long connectFailed(IOException e) throws IOException {
+		if( !mConnectedOnce || !mReconnect || !mTransport.canReconnect() ) throw e;
+		return nextBackoff();
+	}
+
+	/**
+	 * An established connection failed, and the transport has been disconnected.
+	 * @return how long to wait before reconnecting, in milliseconds
+	 * @throws IOException e, if the link should give up instead
+	 */
+	long connectionLost(IOException e) throws IOException {
+		if( !mReconnect || !mTransport.canReconnect() ) throw e;
+		mLostAt = System.nanoTime();
+		if( mListener != null ) mListener.onDisconnected(this, e);
+		return nextBackoff();
+	}
+
+	private long nextBackoff() {
+		long backoff = mBackoff;
+		mBackoff = Math.min(backoff * 2, mMaxBackoff);
+		return backoff;
+	}
+
+	/**
+	 * The link is done, because of error or, if that is null, because it was stopped. Close
+	 * everything and tell the listener.
+	 */
+	void finish(Exception error) {
+		// don't forget to close our connection when we're done.
+		mPackets.close();
+		mPackets.clear();
+		try {
+			mTransport.close();
+		} catch(IOException e) {
+			// already closed
+		}
+		if( mListener != null ) {
+			if( error == null ) {
+				mListener.onClosed(this);
+			} else {
+				mListener.onError(this, error);
+			}
+		}
+	}
+
+	/**
+	 * Read what is available from a non-blocking channel, and dispatch the frames it completes.
+	 * @return as for FrameDecoder.read()
+	 */
+	int read(ReadableByteChannel in) throws IOException {
+		int n = mDecoder.read(in, mDispatcher);
+		if( n > 0 ) mStats.recordRead(n);
+		return n;
+	}
+
+	/**
+	 * Encode a batch of packets taken from the outbound queue into out, as plain or checked
+	 * frames, ready to be sent with one write.
+	 */
+	void encodeBatch(Packet batch, Packet out) {
+		boolean checked = mChecked;
+		int frames = 0;
+		out.clear();
+		for( Packet p = batch; p != null; p = p.queueNext ) {
+			if( checked ) {
+				out.putChecked(p, mSeq++);
+			} else {
+				out.put(p.getBuffer(), 0, p.length());
+			}
+			frames++;
+		}
+		mStats.recordBatch(out, frames);
+	}
+
+	/**
+	 * A batch from encodeBatch() has been written: record it and recycle its packets.
+	 */
+	void batchSent(Packet batch) {
+		// the packets were only kept this long for their timestamps
+		long now = System.nanoTime();
+		FrameRecorder recorder = mRecorder;
+		Packet p = batch;
+		while( p != null ) {
+			mLatency.recordSent(p, now);
+			if( recorder != null ) recorder.recordOutbound(p, now);
+			Packet next = p.queueNext;
+			p.queueNext = null;
+			p.recycle();
+			p = next;
+		}
+	}
+
+	/**
+	 * Wait before the next connection attempt; stop() cuts the wait short.
+	 */
+	private void waitBackoff(long ms) throws InterruptedException {
+		synchronized(mBackoffLock) {
+			if( !mStop ) mBackoffLock.wait(ms);
+		}
+	}
+
+	/**
+	 * Request that the link stop. Closes the transport so that the blocked reader wakes up.
+	 */
+	public void stop() throws IOException {
+		mStop = true;
+		synchronized(mBackoffLock) {
+			mBackoffLock.notifyAll();
+		}
+		mPackets.close();
+		mTransport.close();
+	}
+
+	/**
+	 * send a packet to the robot. The packet is recycled once it has been sent, or if the
+	 * outbound queue is full and drops it, so the caller must not touch it after this.
+	 * @return false if the packet was dropped
+	 */
+	public boolean sendPacket(Packet p) {
+		return mPackets.offer(p);
+	}
+
+	/**
+	 * Writer thread: sleeps until the application queues packets, then gathers everything
+	 * pending into one buffer and sends it with a single write.
+	 */
+	private class Writer extends Thread {
+		private final OutputStream mOut;
+		private final Packet mBatch;
+
+		public Writer(OutputStream out) {
+			super("RobotLink writer");
+			mOut = out;
+			mBatch = new Packet();
+		}
+
+		@Override
+		public void run() {
+			try {
+				Packet batch;
+				while( (batch = mPackets.take()) != null ) {
+					encodeBatch(batch, mBatch);
+					// a stream write only returns once the transport has taken everything
+					mStats.writeBlocking();
+					try {
+						mOut.write(mBatch.getBuffer(), 0, mBatch.length());
+					} finally {
+						mStats.writeUnblocked();
+					}
+					batchSent(batch);
+				}
+			} catch(InterruptedException e) {
+				// fall through and exit
+			} catch(IOException e) {
+				if( !mStop ) {
+					mWriteError = e;
+					// take the reader down with us so the whole link reports the failure
+					try {
+						mTransport.disconnect();
+					} catch(IOException e2) {
+						// already disconnected
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,447 @@
+package com.namniart.frankie;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless stand-in for the robot, for load testing the receive path without hardware. <br/>
+ * <br/>
+ * Streams 'C' compass and 'G' GPS frames over a Transport at configurable rates and burst
+ * sizes, using exactly the framing the robot uses. It can pick values that force escaping in
+ * every frame. It also decodes the 'V', 'D' and 'A' commands it receives, keeping counts and
+ * the latest values so the command rate can be measured. It answers EncodingMode requests,
+ * switching its telemetry to the compact encoding and back. <br/>
+ * <br/>
+ * Runs over a PipeTransport in the same process, or as a TCP server on localhost; see main()
+ * for the command line. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class RobotSimulator implements Runnable {
+	private final Transport mTransport;
+	private volatile boolean mStop;
+
+	// telemetry configuration
+	private double mCompassRate = 10;
+	private double mGpsRate = 1;
+	private int mBurst = 1;
+	private boolean mForceEscapes;
+	private volatile boolean mChecked;
+	private PrintStream mLog;
+
+	// telemetry sent
+	private final AtomicLong mFramesSent = new AtomicLong();
+	private final AtomicLong mBytesSent = new AtomicLong();
+	private final AtomicLong mTicksMissed = new AtomicLong();
+
+	// commands received, and their latest values
+	private final AtomicLongArray mCommands = new AtomicLongArray(256);
+	private volatile int mSpeed;
+	private volatile int mSteering;
+	private volatile int mDeadman;
+	private volatile int mAutonomous;
+	private final HandlerRegistry mHandlers = new HandlerRegistry();
+	private long mStartTime;
+
+	// telemetry encoding, as negotiated by the app
+	private volatile boolean mCompact;
+	private volatile boolean mEncodingReply;
+
+	// only used by the sending thread
+	private final CompassReading mCompassReading = new CompassReading();
+	private final GpsFix mFix = new GpsFix();
+	private final EncodingMode mEncoding = new EncodingMode();
+	private final Packet mFrame = new Packet();
+	private int mSeq;
+
+	public RobotSimulator(Transport transport) {
+		mTransport = transport;
+		mHandlers.add(VelocityCommand.TYPE, new PacketHandler() {
+			private final VelocityCommand mCommand = new VelocityCommand();
+
+			@Override
+			public void handlePacket(Packet p) {
+				if( !mCommand.decode(p) ) return;
+				mSpeed = mCommand.getSpeed();
+				mSteering = mCommand.getSteering();
+				command('V', "speed " + mSpeed + " steering " + mSteering);
+			}
+		});
+		mHandlers.add(Deadman.TYPE, new PacketHandler() {
+			private final Deadman mCommand = new Deadman();
+
+			@Override
+			public void handlePacket(Packet p) {
+				if( !mCommand.decode(p) ) return;
+				mDeadman = mCommand.isPressed() ? 1 : 0;
+				command('D', "deadman " + mDeadman);
+			}
+		});
+		mHandlers.add(AutonomousMode.TYPE, new PacketHandler() {
+			private final AutonomousMode mCommand = new AutonomousMode();
+
+			@Override
+			public void handlePacket(Packet p) {
+				if( !mCommand.decode(p) ) return;
+				mAutonomous = mCommand.isEnabled() ? 1 : 0;
+				command('A', "autonomous " + mAutonomous);
+			}
+		});
+		mHandlers.add(EncodingMode.TYPE, new PacketHandler() {
+			private final EncodingMode mRequest = new EncodingMode();
+
+			@Override
+			public void handlePacket(Packet p) {
+				if( !mRequest.decode(p) ) return;
+				mCompact = mRequest.isCompact();
+				mEncodingReply = true; // the sending thread confirms the switch
+				command('E', mCompact ? "compact telemetry" : "plain telemetry");
+			}
+		});
+	}
+
+	private void command(int type, String description) {
+		mCommands.incrementAndGet(type);
+		PrintStream log = mLog;
+		if( log != null ) log.println("command " + description);
+	}
+
+	/**
+	 * Compass frames per second; 0 to send none.
+	 */
+	public void setCompassRate(double hz) {
+		mCompassRate = hz;
+	}
+
+	/**
+	 * GPS frames per second; 0 to send none.
+	 */
+	public void setGpsRate(double hz) {
+		mGpsRate = hz;
+	}
+
+	/**
+	 * Frames of each type sent back to back, in one write, every time one is due.
+	 */
+	public void setBurst(int frames) {
+		mBurst = Math.max(1, frames);
+	}
+
+	/**
+	 * Choose values so that every frame contains bytes that must be escaped.
+	 */
+	public void setForceEscapes(boolean force) {
+		mForceEscapes = force;
+	}
+
+	/**
+	 * Send checked frames, with sequence numbers and CRCs. Commands are accepted in either
+	 * format regardless.
+	 */
+	public void setCheckedFraming(boolean checked) {
+		mChecked = checked;
+	}
+
+	/**
+	 * Print every command received to log; null for silence.
+	 */
+	public void setCommandLog(PrintStream log) {
+		mLog = log;
+	}
+
+	public long getFramesSent() {
+		return mFramesSent.get();
+	}
+
+	public long getBytesSent() {
+		return mBytesSent.get();
+	}
+
+	/**
+	 * Payload bytes saved by sending telemetry in the compact encoding.
+	 */
+	public long getBytesSaved() {
+		return mCompassReading.getBytesSaved() + mFix.getBytesSaved();
+	}
+
+	/**
+	 * Number of times the simulator fell so far behind schedule, usually because the other end
+	 * wasn't reading fast enough, that it skipped frames instead of catching up.
+	 */
+	public long getTicksMissed() {
+		return mTicksMissed.get();
+	}
+
+	/**
+	 * Number of commands of a type received.
+	 */
+	public long getCommandCount(int type) {
+		return mCommands.get(type & 0xFF);
+	}
+
+	/**
+	 * Commands of any type received per second since run() started.
+	 */
+	public double getCommandRate() {
+		long elapsed = System.nanoTime() - mStartTime;
+		long total = mCommands.get('V') + mCommands.get('D') + mCommands.get('A');
+		return elapsed > 0 ? total * 1e9 / elapsed : 0;
+	}
+
+	public int getSpeed() {
+		return mSpeed;
+	}
+
+	public int getSteering() {
+		return mSteering;
+	}
+
+	public int getDeadman() {
+		return mDeadman;
+	}
+
+	public int getAutonomous() {
+		return mAutonomous;
+	}
+
+	public void stop() throws IOException {
+		mStop = true;
+		mTransport.close();
+	}
+
+	/**
+	 * Connect, then send telemetry on this thread and read commands on another, until stop()
+	 * is called or the other end goes away.
+	 */
+	@Override
+	public void run() {
+		try {
+			mTransport.connect();
+			mStartTime = System.nanoTime();
+			final InputStream in = mTransport.getInputStream();
+			Thread reader = new Thread("RobotSimulator reader") {
+				@Override
+				public void run() {
+					FrameDecoder decoder = new FrameDecoder();
+					FrameDecoder.FrameListener dispatcher = new FrameDecoder.FrameListener() {
+						@Override
+						public void onFrame(int type, Packet p) {
+							mHandlers.dispatch(type, p);
+						}
+					};
+					try {
+						while( !mStop && decoder.read(in, dispatcher) >= 0 ) {
+							// dispatcher does the work
+						}
+					} catch(IOException e) {
+						// closed; the sender will notice too
+					}
+				}
+			};
+			reader.start();
+			try {
+				emit(mTransport.getOutputStream());
+			} finally {
+				mTransport.close();
+				reader.join();
+			}
+		} catch(Exception e) {
+			if( !mStop ) {
+				FastLog.e(FastLog.LINK, "RobotSimulator stopped: " + e);
+			}
+		}
+	}
+
+	private void emit(OutputStream out) throws IOException {
+		Packet batch = new Packet();
+		long now = System.nanoTime();
+		long compassPeriod = mCompassRate > 0 ? (long)(1e9 / mCompassRate) : 0;
+		long gpsPeriod = mGpsRate > 0 ? (long)(1e9 / mGpsRate) : 0;
+		long nextCompass = now;
+		long nextGps = now;
+		int compass = 0;
+		int latitude = 37427475;
+		int longitude = -122170255;
+
+		while( !mStop ) {
+			batch.clear();
+			int frames = 0;
+			now = System.nanoTime();
+			if( mEncodingReply ) {
+				mEncodingReply = false;
+				append(mEncoding.setCompact(mCompact), batch);
+				frames++;
+			}
+			if( compassPeriod > 0 && now >= nextCompass ) {
+				for( int i=0; i<mBurst; i++ ) {
+					compass = (compass + 7) % 3600;
+					mCompassReading.setHeading(mForceEscapes ? 0x0d1b0000 | compass : compass);
+					append(mCompassReading, batch);
+					frames++;
+				}
+				nextCompass = schedule(nextCompass, compassPeriod, now);
+			}
+			if( gpsPeriod > 0 && now >= nextGps ) {
+				for( int i=0; i<mBurst; i++ ) {
+					latitude += 3;
+					longitude -= 2;
+					if( mForceEscapes ) {
+						mFix.set((latitude & ~0xFFFF) | 0x0d1b, (longitude & ~0xFFFF) | 0x1b0d, 0x0d);
+					} else {
+						mFix.set(latitude, longitude, 9);
+					}
+					append(mFix, batch);
+					frames++;
+				}
+				nextGps = schedule(nextGps, gpsPeriod, now);
+			}
+
+			if( frames > 0 ) {
+				out.write(batch.getBuffer(), 0, batch.length());
+				mFramesSent.addAndGet(frames);
+				mBytesSent.addAndGet(batch.length());
+			} else {
+				long next = Long.MAX_VALUE;
+				if( compassPeriod > 0 ) next = Math.min(next, nextCompass);
+				if( gpsPeriod > 0 ) next = Math.min(next, nextGps);
+				if( next == Long.MAX_VALUE ) {
+					LockSupport.parkNanos(100000000L); // nothing to send; just wait for stop()
+				} else {
+					LockSupport.parkNanos(next - now);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append a message to batch in the negotiated encoding and framing.
+	 */
+	private void append(Message m, Packet batch) {
+		Packet frame = batch;
+		if( mChecked ) {
+			frame = mFrame;
+			frame.clear();
+		}
+		if( mCompact && m.hasCompactEncoding() ) {
+			m.encodeCompact(frame);
+		} else {
+			m.encode(frame);
+		}
+		if( mChecked ) batch.putChecked(frame, mSeq++);
+	}
+
+	/**
+	 * The next deadline after one at time due has been served at time now. Keeps to a fixed
+	 * rate, but if more than a second behind, skips ahead rather than sending a flood.
+	 */
+	private long schedule(long due, long period, long now) {
+		long next = due + period;
+		if( now - next > 1000000000L ) {
+			long skipped = (now - next) / period;
+			mTicksMissed.addAndGet(skipped);
+			next += skipped * period;
+		}
+		return next;
+	}
+
+	/**
+	 * Command line: <br/>
+	 * RobotSimulator [--tcp PORT | --pipe] [--compass HZ] [--gps HZ] [--burst N] [--escape]
+	 * [--checked] [--compact] [--seconds S] [--verbose] <br/>
+	 * <br/>
+	 * --tcp listens on localhost for one connection from the app; point a TcpTransport at it.
+	 * --pipe, the default, runs the app's side of the protocol stack in this process too and
+	 * reports how many frames per second it decoded, which shows where the decoder saturates.
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = -1;
+		double compass = 10;
+		double gps = 1;
+		int burst = 1;
+		boolean escape = false;
+		boolean checked = false;
+		boolean compact = false;
+		boolean verbose = false;
+		int seconds = 10;
+		for( int i=0; i<args.length; i++ ) {
+			String a = args[i];
+			if( a.equals("--tcp") ) port = Integer.parseInt(args[++i]);
+			else if( a.equals("--pipe") ) port = -1;
+			else if( a.equals("--compass") ) compass = Double.parseDouble(args[++i]);
+			else if( a.equals("--gps") ) gps = Double.parseDouble(args[++i]);
+			else if( a.equals("--burst") ) burst = Integer.parseInt(args[++i]);
+			else if( a.equals("--escape") ) escape = true;
+			else if( a.equals("--checked") ) checked = true;
+			else if( a.equals("--compact") ) compact = true;
+			else if( a.equals("--seconds") ) seconds = Integer.parseInt(args[++i]);
+			else if( a.equals("--verbose") ) verbose = true;
+			else throw new IllegalArgumentException("Unknown argument: " + a);
+		}
+
+		Transport robotEnd;
+		RobotLink app = null;
+		final AtomicLong received = new AtomicLong();
+		if( port >= 0 ) {
+			ServerSocket server = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+			System.out.println("Waiting for a connection on 127.0.0.1:" + server.getLocalPort());
+			robotEnd = new TcpTransport(server.accept());
+			server.close();
+		} else {
+			PipeTransport[] pair = PipeTransport.createPair();
+			robotEnd = pair[1];
+			HandlerRegistry handlers = new HandlerRegistry();
+			PacketHandler counter = new PacketHandler() {
+				@Override
+				public void handlePacket(Packet p) {
+					received.incrementAndGet();
+				}
+			};
+			handlers.add('C', counter);
+			handlers.add('G', counter);
+			app = new RobotLink(pair[0], handlers);
+			app.setCheckedFraming(checked);
+			if( compact ) app.sendPacket(new EncodingMode().setCompact(true).encode());
+			new Thread(app, "RobotLink reader").start();
+		}
+
+		RobotSimulator sim = new RobotSimulator(robotEnd);
+		sim.setCompassRate(compass);
+		sim.setGpsRate(gps);
+		sim.setBurst(burst);
+		sim.setForceEscapes(escape);
+		sim.setCheckedFraming(checked);
+		if( verbose ) sim.setCommandLog(System.out);
+		Thread t = new Thread(sim, "RobotSimulator");
+		t.start();
+
+		long lastSent = 0, lastReceived = 0, lastBytes = 0;
+		for( int s=1; s<=seconds && t.isAlive(); s++ ) {
+			Thread.sleep(1000);
+			long sent = sim.getFramesSent();
+			long bytes = sim.getBytesSent();
+			long got = received.get();
+			System.out.println(s + "s: sent " + (sent - lastSent) + " frames/s, "
+					+ (bytes - lastBytes) + " B/s"
+					+ (app != null ? ", decoded " + (got - lastReceived) + " frames/s" : "")
+					+ (app != null && checked ? ", corrupt " + app.getDecoder().getCorruptCount()
+							+ ", lost " + app.getDecoder().getLostCount() : "")
+					+ (compact ? ", saved " + sim.getBytesSaved() + " B" : "")
+					+ ", missed ticks " + sim.getTicksMissed()
+					+ ", commands " + String.format("%.1f", sim.getCommandRate()) + "/s");
+			lastSent = sent;
+			lastBytes = bytes;
+			lastReceived = got;
+		}
+		sim.stop();
+		if( app != null ) app.stop();
+		t.join();
+	}
+}
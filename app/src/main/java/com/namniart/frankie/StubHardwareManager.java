@@ -13,11 +13,16 @@ package com.namniart.frankie;
 public class StubHardwareManager extends HardwareManager {
 	
 	public StubHardwareManager(RobotApplication app) {
-		super(null, app, null);
+		super((Transport)null, app, null);
 	}
 	
 	@Override
 	public void run() {
 		return; // do nothing and terminate if we are run.
 	}
+
+	@Override
+	public void sendPacket(Packet p) {
+		p.recycle(); // nobody will ever send it
+	}
 }
@@ -0,0 +1,143 @@
+package com.namniart.frankie;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport over a TCP socket; normally to a simulator on localhost. <br/>
+ * <br/>
+ * connect() makes a plain Socket: the streams of a socket that belongs to a SocketChannel
+ * share the channel's blocking lock on some platforms, Android's included, so the writer
+ * would wait for the reader's read() to return. connectNonBlocking() makes a SocketChannel,
+ * for a LinkSelector to run.
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class TcpTransport implements ChannelTransport {
+	private final String mHost;
+	private final int mPort;
+	private volatile Socket mSocket;
+	private volatile boolean mClosed;
+	private final boolean mAccepted; // can't reconnect; we don't know how to reach the other end
+
+	/**
+	 * A transport that connects to host:port when connect() is called.
+	 */
+	public TcpTransport(String host, int port) {
+		mHost = host;
+		mPort = port;
+		mAccepted = false;
+	}
+
+	/**
+	 * A transport over a socket that is already connected, such as one returned by
+	 * ServerSocket.accept(). It can only be selected if it came from a ServerSocketChannel.
+	 */
+	public TcpTransport(Socket socket) {
+		mHost = socket.getInetAddress().getHostAddress();
+		mPort = socket.getPort();
+		mSocket = socket;
+		mAccepted = true;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		if( mClosed ) throw new IOException("Connection to " + getName() + " closed");
+		Socket socket = mSocket;
+		if( socket == null || socket.isClosed() ) {
+			if( mAccepted ) throw new IOException("Can't reconnect to " + getName());
+			socket = new Socket();
+			mSocket = socket;
+			socket.connect(new InetSocketAddress(mHost, mPort));
+		}
+		// frames are small and latency matters more than packing
+		socket.setTcpNoDelay(true);
+		if( mClosed ) {
+			socket.close();
+		}
+	}
+
+	@Override
+	public boolean isSelectable() {
+		Socket socket = mSocket;
+		return !mAccepted || (socket != null && socket.getChannel() != null);
+	}
+
+	@Override
+	public boolean connectNonBlocking() throws IOException {
+		if( mClosed ) throw new IOException("Connection to " + getName() + " closed");
+		Socket socket = mSocket;
+		if( socket != null && !socket.isClosed() ) {
+			// already connected, as an accepted socket is
+			if( socket.getChannel() == null ) throw new IOException(getName() + " is not selectable");
+			socket.getChannel().configureBlocking(false);
+			socket.setTcpNoDelay(true);
+			return true;
+		}
+		if( mAccepted ) throw new IOException("Can't reconnect to " + getName());
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		mSocket = channel.socket();
+		channel.socket().setTcpNoDelay(true);
+		boolean connected = channel.connect(new InetSocketAddress(mHost, mPort));
+		if( mClosed ) {
+			channel.close();
+		}
+		return connected;
+	}
+
+	@Override
+	public boolean finishConnect() throws IOException {
+		return mSocket.getChannel().finishConnect();
+	}
+
+	@Override
+	public SelectableChannel getReadChannel() {
+		return mSocket.getChannel();
+	}
+
+	@Override
+	public SelectableChannel getWriteChannel() {
+		return mSocket.getChannel();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return mSocket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return mSocket.getOutputStream();
+	}
+
+	@Override
+	public boolean canReconnect() {
+		return !mAccepted && !mClosed;
+	}
+
+	@Override
+	public void disconnect() throws IOException {
+		Socket socket = mSocket;
+		if( socket != null ) {
+			socket.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		mClosed = true;
+		disconnect();
+	}
+
+	@Override
+	public String getName() {
+		return mHost + ":" + mPort;
+	}
+}
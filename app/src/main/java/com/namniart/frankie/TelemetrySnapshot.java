@@ -0,0 +1,81 @@
+package com.namniart.frankie;
+
+/**
+ * Latest telemetry values from the robot, shared between the thread that receives them and
+ * the UI thread that displays them. <br/>
+ * <br/>
+ * Packet handlers overwrite the values as packets arrive; the UI copies them out once per
+ * display frame. A version counter (a seqlock) lets the reader get a consistent copy without
+ * locking, and tells it whether anything changed since its last look. Writers take the
+ * lock, so handlers on several threads, such as two robot sessions or a replay, can share one
+ * snapshot; two unlocked writers could leave the version odd and the reader spinning. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class TelemetrySnapshot {
+	private volatile int mVersion;
+
+	private volatile int mCompass;
+	private volatile int mLatitude;
+	private volatile int mLongitude;
+	private volatile int mSatellites;
+
+	/**
+	 * @param compass heading in tenths of a degree
+	 */
+	public synchronized void setCompass(int compass) {
+		int v = mVersion;
+		mVersion = v + 1;
+		mCompass = compass;
+		mVersion = v + 2;
+	}
+
+	public synchronized void setGps(int latitude, int longitude, int satellites) {
+		int v = mVersion;
+		mVersion = v + 1;
+		mLatitude = latitude;
+		mLongitude = longitude;
+		mSatellites = satellites;
+		mVersion = v + 2;
+	}
+
+	/**
+	 * Copy a consistent set of values into dst.
+	 * @return the version that was copied; it changes every time any value is written
+	 */
+	public int copyTo(TelemetrySnapshot dst) {
+		while( true ) {
+			int v = mVersion;
+			if( (v & 1) != 0 ) continue; // write in progress
+			dst.mCompass = mCompass;
+			dst.mLatitude = mLatitude;
+			dst.mLongitude = mLongitude;
+			dst.mSatellites = mSatellites;
+			if( mVersion == v ) {
+				dst.mVersion = v;
+				return v;
+			}
+		}
+	}
+
+	public int getVersion() {
+		return mVersion;
+	}
+
+	public int getCompass() {
+		return mCompass;
+	}
+
+	public int getLatitude() {
+		return mLatitude;
+	}
+
+	public int getLongitude() {
+		return mLongitude;
+	}
+
+	public int getSatellites() {
+		return mSatellites;
+	}
+}
@@ -0,0 +1,49 @@
+package com.namniart.frankie;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream connection to a robot, underneath the framing and queueing in RobotLink. <br/>
+ * <br/>
+ * Implementations exist for Bluetooth RFCOMM, an in-process pipe, and a TCP socket, so that
+ * the same protocol stack can run against real hardware or against a simulator. <br/>
+ *
+ * @author Austin Hendrix
+ *
+ */
+public interface Transport {
+	/**
+	 * Open the connection. Blocks until it is ready to use. May be called again after
+	 * disconnect() to reconnect; transports that can't do that throw an IOException.
+	 */
+	public void connect() throws IOException;
+
+	/**
+	 * Whether connect() can work again after disconnect(). If not, a lost connection is lost
+	 * for good, and RobotLink gives up instead of retrying.
+	 */
+	public boolean canReconnect();
+
+	public InputStream getInputStream() throws IOException;
+
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Drop the current connection, but allow connect() to be called again. Must be callable
+	 * from any thread, and must wake up a thread that is blocked reading or writing.
+	 */
+	public void disconnect() throws IOException;
+
+	/**
+	 * Close the connection for good. Must be callable from any thread, and must wake up a
+	 * thread that is blocked reading, writing or connecting.
+	 */
+	public void close() throws IOException;
+
+	/**
+	 * A human-readable name for the other end, for messages.
+	 */
+	public String getName();
+}
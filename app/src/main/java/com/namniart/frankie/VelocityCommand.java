@@ -0,0 +1,56 @@
+package com.namniart.frankie;
+
+/**
+ * 'V' packet to the robot: speed and steering setpoints.
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class VelocityCommand extends Message {
+	public static final char TYPE = 'V';
+
+	private byte mSpeed;
+	private byte mSteering;
+
+	@Override
+	public char getType() {
+		return TYPE;
+	}
+
+	@Override
+	public int getSize() {
+		return 2;
+	}
+
+	/**
+	 * @return speed setpoint; positive is forward
+	 */
+	public byte getSpeed() {
+		return mSpeed;
+	}
+
+	/**
+	 * @return steering setpoint; positive is right
+	 */
+	public byte getSteering() {
+		return mSteering;
+	}
+
+	public VelocityCommand set(byte speed, byte steering) {
+		mSpeed = speed;
+		mSteering = steering;
+		return this;
+	}
+
+	@Override
+	protected void readFields(Packet p) {
+		mSpeed = p.reads8();
+		mSteering = p.reads8();
+	}
+
+	@Override
+	protected void writeFields(Packet p) {
+		p.append(mSpeed);
+		p.append(mSteering);
+	}
+}
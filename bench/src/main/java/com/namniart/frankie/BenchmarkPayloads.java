@@ -0,0 +1,74 @@
+package com.namniart.frankie;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Realistic messages for the benchmarks, in plain and escape-heavy variants.
+ *
+ * @author Austin Hendrix
+ *
+ */
+public class BenchmarkPayloads {
+	// compass in tenths of a degree; the escaped variant has a '\r' and an ESC in its low bytes
+	public static final int COMPASS = 2713;
+	public static final int COMPASS_ESCAPED = 0x0d1b;
+
+	// GPS fix in millionths of a degree
+	public static final int LATITUDE = 37427475;
+	public static final int LONGITUDE = -122170255;
+	public static final int SATELLITES = 9;
+	public static final int LATITUDE_ESCAPED = 0x1b0d1b0d;
+	public static final int LONGITUDE_ESCAPED = 0x0d1b0d1b;
+	public static final int SATELLITES_ESCAPED = 0x0d;
+
+	// joystick setpoints
+	public static final byte SPEED = 12;
+	public static final byte STEERING = -7;
+	public static final byte SPEED_ESCAPED = 0x0d;
+	public static final byte STEERING_ESCAPED = 0x1b;
+
+	public static Packet compass(boolean escaped) {
+		Packet p = Packet.obtain('C');
+		p.append(escaped ? COMPASS_ESCAPED : COMPASS);
+		p.finish();
+		return p;
+	}
+
+	public static Packet gps(boolean escaped) {
+		Packet p = Packet.obtain('G');
+		p.append(escaped ? LATITUDE_ESCAPED : LATITUDE);
+		p.append(escaped ? LONGITUDE_ESCAPED : LONGITUDE);
+		p.append(escaped ? SATELLITES_ESCAPED : SATELLITES);
+		p.finish();
+		return p;
+	}
+
+	public static Packet velocity(boolean escaped) {
+		Packet p = Packet.obtain('V');
+		p.append(escaped ? SPEED_ESCAPED : SPEED);
+		p.append(escaped ? STEERING_ESCAPED : STEERING);
+		p.finish();
+		return p;
+	}
+
+	public static Packet deadman(boolean escaped) {
+		Packet p = Packet.obtain('D');
+		p.append(escaped ? (byte)0x0d : (byte)1);
+		p.finish();
+		return p;
+	}
+
+	/**
+	 * A telemetry stream as the robot would send it: count frames, alternating between
+	 * several compass readings and a GPS fix.
+	 */
+	public static byte[] telemetryStream(int count, boolean escaped) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for( int i=0; i<count; i++ ) {
+			Packet p = (i % 5 == 4) ? gps(escaped) : compass(escaped);
+			out.write(p.getBuffer(), 0, p.length());
+			p.recycle();
+		}
+		return out.toByteArray();
+	}
+}
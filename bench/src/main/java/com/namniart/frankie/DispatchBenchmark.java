@@ -0,0 +1,95 @@
+package com.namniart.frankie;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Handler lookup and dispatch through HandlerRegistry, which is what
+ * RobotApplication.getHandlers() and the reader thread use.
+ *
+ * @author Austin Hendrix
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	private HandlerRegistry registry;
+	private Packet compass;
+	private Packet gps;
+	private byte[] compassBytes;
+	private byte[] gpsBytes;
+	private Blackhole sink;
+
+	@Setup
+	public void setup() {
+		registry = new HandlerRegistry();
+		registry.add('C', new PacketHandler() {
+			@Override
+			public void handlePacket(Packet p) {
+				sink.consume(p.reads32());
+			}
+		});
+		registry.add('G', new PacketHandler() {
+			@Override
+			public void handlePacket(Packet p) {
+				sink.consume(p.reads32());
+				sink.consume(p.reads32());
+				sink.consume(p.reads32());
+			}
+		});
+		// a second listener, as when a recorder or overlay is also registered
+		registry.add('G', new PacketHandler() {
+			@Override
+			public void handlePacket(Packet p) {
+				sink.consume(p.sz());
+			}
+		});
+		compass = new Packet();
+		gps = new Packet();
+		compassBytes = new byte[4];
+		gpsBytes = new byte[12];
+	}
+
+	@Benchmark
+	public void lookup(Blackhole bh) {
+		bh.consume(registry.get('C'));
+		bh.consume(registry.get('G'));
+		bh.consume(registry.get('Z'));
+	}
+
+	@Benchmark
+	public void dispatchCompass(Blackhole bh) {
+		sink = bh;
+		compass.wrap(compassBytes, 0, compassBytes.length);
+		registry.dispatch('C', compass);
+	}
+
+	@Benchmark
+	public void dispatchGps(Blackhole bh) {
+		sink = bh;
+		gps.wrap(gpsBytes, 0, gpsBytes.length);
+		registry.dispatch('G', gps);
+	}
+
+	@Benchmark
+	public void dispatchUnhandled(Blackhole bh) {
+		sink = bh;
+		compass.wrap(compassBytes, 0, compassBytes.length);
+		registry.dispatch('Z', compass);
+	}
+}
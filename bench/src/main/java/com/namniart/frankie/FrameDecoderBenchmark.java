@@ -0,0 +1,70 @@
+package com.namniart.frankie;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The receive loop: FrameDecoder reading a stream of compass and GPS frames from memory and
+ * handing each one to a listener that decodes its fields. Scores are per frame.
+ *
+ * @author Austin Hendrix
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+	private static final int FRAMES = 1000;
+
+	@Param({"false", "true"})
+	public boolean escaped;
+
+	private ByteArrayInputStream in;
+	private FrameDecoder decoder;
+	private Sink sink;
+
+	private static class Sink implements FrameDecoder.FrameListener {
+		Blackhole bh;
+
+		@Override
+		public void onFrame(int type, Packet p) {
+			bh.consume(type);
+			bh.consume(p.reads32());
+		}
+	}
+
+	@Setup
+	public void setup() {
+		in = new ByteArrayInputStream(BenchmarkPayloads.telemetryStream(FRAMES, escaped));
+		decoder = new FrameDecoder();
+		sink = new Sink();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public void decodeStream(Blackhole bh) throws IOException {
+		sink.bh = bh;
+		in.reset();
+		while( decoder.read(in, sink) > 0 ) {
+			// keep going until the stream runs dry
+		}
+	}
+}
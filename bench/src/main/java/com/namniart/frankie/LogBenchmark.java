@@ -0,0 +1,64 @@
+package com.namniart.frankie;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of a log call on the joystick path: FastLog with its category off and on, against
+ * building the message string the way the Log.d calls did. No drain thread runs, so enabled
+ * entries just go round the ring.
+ *
+ * @author Austin Hendrix
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+	private static final int LOG_COMMAND = FastLog.format("Speed: %d, Steering: %d");
+	private static final int LOG_AXIS = FastLog.format("Axis %d: %.3f");
+
+	private byte speed = 12;
+	private byte steering = -7;
+	private float axis = 0.25f;
+
+	@Setup
+	public void setup() {
+		FastLog.setLevel(FastLog.LINK, FastLog.SILENT);
+		FastLog.setLevel(FastLog.JOYSTICK, FastLog.DEBUG);
+	}
+
+	@Benchmark
+	public void disabled() {
+		FastLog.d(FastLog.LINK, LOG_COMMAND, speed, steering);
+	}
+
+	@Benchmark
+	public void enabled() {
+		FastLog.d(FastLog.JOYSTICK, LOG_COMMAND, speed, steering);
+	}
+
+	@Benchmark
+	public void enabledFloat() {
+		FastLog.d(FastLog.JOYSTICK, LOG_AXIS, 1, FastLog.bits(axis));
+	}
+
+	@Benchmark
+	public void concatenated(Blackhole bh) {
+		bh.consume("Speed: " + speed + ", Steering: " + steering);
+	}
+}
@@ -0,0 +1,212 @@
+package com.namniart.frankie;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of single packets: append with and without escaping, reads, the
+ * typed Message codecs, and toByteArray(), using the 'V', 'D', 'C' and 'G' messages.
+ *
+ * @author Austin Hendrix
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+	@Param({"false", "true"})
+	public boolean escaped;
+
+	private byte speed, steering, deadman;
+	private int compass, latitude, longitude, satellites;
+	private float heading;
+
+	// wire bytes of each message, without the type byte, for the decode benchmarks
+	private byte[] compassWire, gpsWire, velocityWire;
+	// decoded payloads of the same messages, as FrameDecoder would hand them to handlers
+	private byte[] compassDecoded, gpsDecoded;
+	private Packet view;
+	private Packet gps;
+	private GpsFix fix;
+	private VelocityCommand velocity;
+
+	@Setup
+	public void setup() {
+		speed = escaped ? BenchmarkPayloads.SPEED_ESCAPED : BenchmarkPayloads.SPEED;
+		steering = escaped ? BenchmarkPayloads.STEERING_ESCAPED : BenchmarkPayloads.STEERING;
+		deadman = escaped ? (byte)0x0d : (byte)1;
+		compass = escaped ? BenchmarkPayloads.COMPASS_ESCAPED : BenchmarkPayloads.COMPASS;
+		latitude = escaped ? BenchmarkPayloads.LATITUDE_ESCAPED : BenchmarkPayloads.LATITUDE;
+		longitude = escaped ? BenchmarkPayloads.LONGITUDE_ESCAPED : BenchmarkPayloads.LONGITUDE;
+		satellites = escaped ? BenchmarkPayloads.SATELLITES_ESCAPED : BenchmarkPayloads.SATELLITES;
+		heading = Float.intBitsToFloat(compass);
+
+		compassWire = payload(BenchmarkPayloads.compass(escaped));
+		gpsWire = payload(BenchmarkPayloads.gps(escaped));
+		velocityWire = payload(BenchmarkPayloads.velocity(escaped));
+		compassDecoded = new byte[] { (byte)compass, (byte)(compass >> 8), (byte)(compass >> 16), (byte)(compass >> 24) };
+		gpsDecoded = new byte[12];
+		for( int i=0; i<4; i++ ) {
+			gpsDecoded[i] = (byte)(latitude >> (8*i));
+			gpsDecoded[4 + i] = (byte)(longitude >> (8*i));
+			gpsDecoded[8 + i] = (byte)(satellites >> (8*i));
+		}
+		view = new Packet();
+		gps = BenchmarkPayloads.gps(escaped);
+		fix = new GpsFix();
+		velocity = new VelocityCommand();
+	}
+
+	private static byte[] payload(Packet p) {
+		byte[] wire = new byte[p.length() - 1];
+		System.arraycopy(p.getBuffer(), 1, wire, 0, wire.length);
+		p.recycle();
+		return wire;
+	}
+
+	@Benchmark
+	public int appendByteVelocity() {
+		Packet p = Packet.obtain('V');
+		p.append(speed);
+		p.append(steering);
+		p.finish();
+		int len = p.length();
+		p.recycle();
+		return len;
+	}
+
+	@Benchmark
+	public int appendByteDeadman() {
+		Packet p = Packet.obtain('D');
+		p.append(deadman);
+		p.finish();
+		int len = p.length();
+		p.recycle();
+		return len;
+	}
+
+	@Benchmark
+	public int appendIntCompass() {
+		Packet p = Packet.obtain('C');
+		p.append(compass);
+		p.finish();
+		int len = p.length();
+		p.recycle();
+		return len;
+	}
+
+	@Benchmark
+	public int appendIntGps() {
+		Packet p = Packet.obtain('G');
+		p.append(latitude);
+		p.append(longitude);
+		p.append(satellites);
+		p.finish();
+		int len = p.length();
+		p.recycle();
+		return len;
+	}
+
+	@Benchmark
+	public int appendFloat() {
+		Packet p = Packet.obtain('C');
+		p.append(heading);
+		p.finish();
+		int len = p.length();
+		p.recycle();
+		return len;
+	}
+
+	/**
+	 * reads8 over wire bytes, undoing escapes as it goes. Includes copying the bytes into
+	 * a pooled packet, since reading consumes them.
+	 */
+	@Benchmark
+	public void reads8Velocity(Blackhole bh) {
+		Packet p = Packet.obtain(velocityWire, 0, velocityWire.length);
+		bh.consume(p.reads8());
+		bh.consume(p.reads8());
+		p.recycle();
+	}
+
+	@Benchmark
+	public int reads32CompassWire() {
+		Packet p = Packet.obtain(compassWire, 0, compassWire.length);
+		int c = p.reads32();
+		p.recycle();
+		return c;
+	}
+
+	@Benchmark
+	public void reads32GpsWire(Blackhole bh) {
+		Packet p = Packet.obtain(gpsWire, 0, gpsWire.length);
+		bh.consume(p.reads32());
+		bh.consume(p.reads32());
+		bh.consume(p.reads32());
+		p.recycle();
+	}
+
+	/**
+	 * reads32 over a decoded view, which is what handlers see.
+	 */
+	@Benchmark
+	public int reads32CompassView() {
+		view.wrap(compassDecoded, 0, compassDecoded.length);
+		return view.reads32();
+	}
+
+	@Benchmark
+	public void reads32GpsView(Blackhole bh) {
+		view.wrap(gpsDecoded, 0, gpsDecoded.length);
+		bh.consume(view.reads32());
+		bh.consume(view.reads32());
+		bh.consume(view.reads32());
+	}
+
+	/**
+	 * GpsFix decoding from a view, into a reused holder.
+	 */
+	@Benchmark
+	public int decodeGpsFix() {
+		view.wrap(gpsDecoded, 0, gpsDecoded.length);
+		fix.decode(view);
+		return fix.getLatitude() ^ fix.getLongitude() ^ fix.getSatellites();
+	}
+
+	@Benchmark
+	public int encodeGpsFix() {
+		Packet p = fix.set(latitude, longitude, satellites).encode();
+		int len = p.length();
+		p.recycle();
+		return len;
+	}
+
+	@Benchmark
+	public int encodeVelocityCommand() {
+		Packet p = velocity.set(speed, steering).encode();
+		int len = p.length();
+		p.recycle();
+		return len;
+	}
+
+	@Benchmark
+	public byte[] toByteArrayGps() {
+		return gps.toByteArray();
+	}
+}